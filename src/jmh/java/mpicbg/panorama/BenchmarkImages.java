@@ -0,0 +1,79 @@
+package mpicbg.panorama;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Random images for benchmarks.
+ *
+ * @author Stephan Saalfeld
+ */
+final public class BenchmarkImages
+{
+	private BenchmarkImages(){}
+
+	/**
+	 * Create an image of type "byte", "short", "float" or "rgb" filled with
+	 * reproducible random pixels.
+	 */
+	final static public ImageProcessor create( final String type, final int width, final int height )
+	{
+		final Random rnd = new Random( 42 );
+		final int n = width * height;
+		if ( type.equals( "byte" ) )
+		{
+			final byte[] pixels = new byte[ n ];
+			rnd.nextBytes( pixels );
+			return new ByteProcessor( width, height, pixels, null );
+		}
+		else if ( type.equals( "short" ) )
+		{
+			final short[] pixels = new short[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = ( short )rnd.nextInt();
+			return new ShortProcessor( width, height, pixels, null );
+		}
+		else if ( type.equals( "float" ) )
+		{
+			final float[] pixels = new float[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = rnd.nextFloat();
+			return new FloatProcessor( width, height, pixels, null );
+		}
+		else
+		{
+			final int[] pixels = new int[ n ];
+			for ( int i = 0; i < n; ++i )
+				pixels[ i ] = 0xff000000 | rnd.nextInt();
+			return new ColorProcessor( width, height, pixels );
+		}
+	}
+
+	/**
+	 * Projection of a full 360&deg;x180&deg; panorama of the given size
+	 * into a target of targetWidth x targetHeight, set up like the viewers
+	 * do.
+	 */
+	final static public EquirectangularProjection projection(
+			final int width,
+			final int height,
+			final int targetWidth,
+			final int targetHeight )
+	{
+		final EquirectangularProjection p = new EquirectangularProjection();
+		p.setMinLambda( 0 );
+		p.setMinPhi( 0 );
+		p.setLambdaPiScale( width / 2.0 );
+		p.setPhiPiScale( height - 1 );
+		p.setTargetWidth( targetWidth );
+		p.setTargetHeight( targetHeight );
+		p.setF( 0.5 );
+		p.setOrientation( 0.3, 0.2, 0.1 );
+		return p;
+	}
+}
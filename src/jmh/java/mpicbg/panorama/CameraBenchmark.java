@@ -0,0 +1,66 @@
+package mpicbg.panorama;
+
+import java.awt.geom.GeneralPath;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.NoninvertibleModelException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per frame camera updates, i.e. {@link PanoramaCamera#setOrientation(double,
+ * double, double)} and the field of view outline drawn by
+ * {@link FovOutline} for the source window.
+ *
+ * @author Stephan Saalfeld
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class CameraBenchmark
+{
+	@Param( { "400x300", "1920x1080" } )
+	public String size;
+
+	private EquirectangularProjection p;
+	private int width, height;
+	private double lambda = 0;
+	final private GeneralPath path = new GeneralPath();
+	final private FovOutline outline = new FovOutline();
+
+	@Setup
+	public void setup()
+	{
+		final String[] wh = size.split( "x" );
+		width = Integer.parseInt( wh[ 0 ] );
+		height = Integer.parseInt( wh[ 1 ] );
+		p = BenchmarkImages.projection( 8192, 4096, width, height );
+	}
+
+	@Benchmark
+	public EquirectangularProjection setOrientation()
+	{
+		lambda += 0.001;
+		p.setOrientation( lambda, 0.2, 0.1 );
+		return p;
+	}
+
+	@Benchmark
+	public GeneralPath visualize() throws NoninvertibleModelException
+	{
+		return outline.outline( path, 8192, width, height, p, 0.5 );
+	}
+}
@@ -0,0 +1,103 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One interpolated viewer frame rendered from cube faces like
+ * {@link Panorama_View} versus directly from the equirectangular source
+ * like {@link EquirectangularPanorama_View}.
+ *
+ * @author Stephan Saalfeld
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class FrameBenchmark
+{
+	@Param( { "byte", "rgb" } )
+	public String type;
+
+	@Param( { "400x300", "1920x1080" } )
+	public String size;
+
+	@Param( { "4096" } )
+	public int sourceWidth;
+
+	/* adaptive mesh tolerance in px, exact if 0 */
+	@Param( { "0", "0.25" } )
+	public double tolerance;
+
+	private ImageProcessor source;
+	private ImageProcessor target;
+	private EquirectangularProjection p;
+	private CubeMap cubeMap;
+	private CubeMapMapping cubeMapping;
+	private ParallelMapping< EquirectangularProjection > equirectangularMapping;
+	private double lambda = 0;
+
+	@Setup
+	public void setup()
+	{
+		final String[] wh = size.split( "x" );
+		final int width = Integer.parseInt( wh[ 0 ] );
+		final int height = Integer.parseInt( wh[ 1 ] );
+		final int sourceHeight = sourceWidth / 2 + 1;
+
+		final ImageProcessor ip = BenchmarkImages.create( type, sourceWidth, sourceHeight );
+		source = ip.createProcessor( sourceWidth + 1, sourceHeight + 1 );
+		AbstractPanorama_View.prepareExtendedImage( ip, source );
+		target = ip.createProcessor( width, height );
+
+		p = BenchmarkImages.projection( sourceWidth, sourceHeight, width, height );
+
+		final int cubeSize = ( int )Math.round( Math.max( p.getPhiPiScale(), p.getLambdaPiScale() ) * 2.0 / Math.PI );
+		cubeMap = new CubeMap( ip, cubeSize );
+		cubeMap.render( source, p );
+		cubeMap.createPyramid();
+		cubeMapping = new CubeMapMapping( new RectlinearCamera() );
+		cubeMapping.setTolerance( tolerance );
+
+		final EquirectangularMapping mapping = new EquirectangularMapping( p.clone() );
+		mapping.setTolerance( tolerance );
+		equirectangularMapping = new ParallelMapping< EquirectangularProjection >(
+				mapping,
+				p.clone() );
+	}
+
+	@Benchmark
+	public ImageProcessor cubeFaceFrame()
+	{
+		lambda += 0.001;
+		p.setOrientation( lambda, 0.2, 0.1 );
+		cubeMapping.getTransform().setCamera( p );
+		cubeMapping.map( cubeMap, target );
+		return target;
+	}
+
+	@Benchmark
+	public ImageProcessor equirectangularFrame()
+	{
+		lambda += 0.001;
+		p.setOrientation( lambda, 0.2, 0.1 );
+		equirectangularMapping.getTransform().set( p );
+		equirectangularMapping.mapInterpolated( source, target );
+		return target;
+	}
+}
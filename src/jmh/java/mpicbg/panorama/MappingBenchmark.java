@@ -0,0 +1,80 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CubeMapMapping} of cube faces into viewer targets across processor
+ * types and sizes.
+ *
+ * @author Stephan Saalfeld
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class MappingBenchmark
+{
+	@Param( { "byte", "short", "float", "rgb" } )
+	public String type;
+
+	@Param( { "400x300", "1920x1080" } )
+	public String size;
+
+	private CubeMap cubeMap;
+	private ImageProcessor target;
+	private CubeMapMapping mapping;
+
+	@Setup
+	public void setup()
+	{
+		final String[] wh = size.split( "x" );
+		final int width = Integer.parseInt( wh[ 0 ] );
+		final int height = Integer.parseInt( wh[ 1 ] );
+
+		final ImageProcessor face = BenchmarkImages.create( type, 2049, 2049 );
+		cubeMap = new CubeMap( face, 2048 );
+		for ( int f = 0; f < 6; ++f )
+			cubeMap.getFace( f ).insert( face, 0, 0 );
+		target = BenchmarkImages.create( type, width, height );
+
+		final RectlinearCamera camera = new RectlinearCamera();
+		camera.setTargetWidth( width );
+		camera.setTargetHeight( height );
+		camera.setF( 0.7 );
+		camera.setOrientation( 0.1, 0.05, 0.02 );
+
+		mapping = new CubeMapMapping( camera );
+	}
+
+	@Benchmark
+	public ImageProcessor map()
+	{
+		mapping.setInterpolate( false );
+		mapping.map( cubeMap, target );
+		return target;
+	}
+
+	@Benchmark
+	public ImageProcessor mapInterpolated()
+	{
+		mapping.setInterpolate( true );
+		mapping.map( cubeMap, target );
+		return target;
+	}
+}
@@ -0,0 +1,94 @@
+package mpicbg.panorama;
+
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.NoninvertibleModelException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Inverse projection of one row of target pixels.
+ *
+ * @author Stephan Saalfeld
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Fork( 1 )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class ProjectionBenchmark
+{
+	final static private int width = 1024;
+
+	@Param( { "false", "true" } )
+	public boolean fastMath;
+
+	private EquirectangularProjection equirectangular;
+	private RectlinearCamera rectlinear;
+
+	final private double[] l2 = new double[ 2 ];
+	final private double[] l3 = new double[ 3 ];
+	final private double[] xs = new double[ width ];
+	final private double[] ys = new double[ width ];
+	final private double[] zs = new double[ width ];
+
+	@Setup
+	public void setup()
+	{
+		equirectangular = BenchmarkImages.projection( 8192, 4096, width, width * 3 / 4 );
+		equirectangular.setFastMath( fastMath );
+
+		rectlinear = new RectlinearCamera();
+		rectlinear.setSourceWidth( 2048 );
+		rectlinear.setSourceHeight( 2048 );
+		rectlinear.setTargetWidth( width );
+		rectlinear.setTargetHeight( width * 3 / 4 );
+		rectlinear.setF( 0.5 );
+		rectlinear.setOrientation( 0.3, 0.2, 0.1 );
+	}
+
+	@Benchmark
+	public void equirectangularApplyInverseInPlace( final Blackhole bh ) throws NoninvertibleModelException
+	{
+		for ( int x = 0; x < width; ++x )
+		{
+			l2[ 0 ] = x;
+			l2[ 1 ] = 100;
+			equirectangular.applyInverseInPlace( l2 );
+			bh.consume( l2[ 0 ] + l2[ 1 ] );
+		}
+	}
+
+	@Benchmark
+	public void equirectangularApplyInverseBlock( final Blackhole bh )
+	{
+		equirectangular.applyInverseBlock( 0, 100, width, xs, ys, zs );
+		bh.consume( xs );
+		bh.consume( ys );
+	}
+
+	@Benchmark
+	public void rectlinearApplyInverseInPlace( final Blackhole bh ) throws NoninvertibleModelException
+	{
+		for ( int x = 0; x < width; ++x )
+		{
+			l3[ 0 ] = x;
+			l3[ 1 ] = 100;
+			l3[ 2 ] = 1;
+			rectlinear.applyInverseInPlace( l3 );
+			bh.consume( l3[ 0 ] + l3[ 1 ] );
+		}
+	}
+}
@@ -2,13 +2,22 @@ package mpicbg.panorama;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.ImageCanvas;
 import ij.gui.ImageWindow;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 import ij.process.Blitter;
 import ij.process.ImageProcessor;
 
 import java.awt.Canvas;
 import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
@@ -16,9 +25,11 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
-
-import mpicbg.models.NoninvertibleModelException;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
 
 abstract public class AbstractPanorama_View implements PlugIn, KeyListener, MouseWheelListener, MouseListener, MouseMotionListener
 {
@@ -142,6 +153,77 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 		}
 	}
 
+	/**
+	 * Draws a path in image coordinates.  The path is replaced with
+	 * {@link #swap(GeneralPath, Rectangle2D)} such that a new outline per
+	 * frame needs neither a new roi nor a copy of the path.
+	 */
+	final static private class PathRoi extends Roi
+	{
+		private GeneralPath path = new GeneralPath();
+		final private AffineTransform toScreen = new AffineTransform();
+
+		PathRoi()
+		{
+			super( 0, 0, 1, 1 );
+		}
+
+		/**
+		 * Draw path with bounds instead of the current path, which is
+		 * returned for reuse.
+		 */
+		synchronized GeneralPath swap( @SuppressWarnings( "hiding" ) final GeneralPath path, final Rectangle2D bounds )
+		{
+			final GeneralPath previous = this.path;
+			this.path = path;
+			x = ( int )Math.floor( bounds.getMinX() );
+			y = ( int )Math.floor( bounds.getMinY() );
+			width = Math.max( 1, ( int )Math.ceil( bounds.getMaxX() ) - x );
+			height = Math.max( 1, ( int )Math.ceil( bounds.getMaxY() ) - y );
+			return previous;
+		}
+
+		@Override
+		synchronized public void draw( final Graphics g )
+		{
+			if ( ic == null )
+				return;
+			final Rectangle srcRect = ic.getSrcRect();
+			final double mag = ic.getMagnification();
+			toScreen.setTransform( mag, 0, 0, mag, -srcRect.x * mag, -srcRect.y * mag );
+			g.setColor( getStrokeColor() );
+			( ( Graphics2D )g ).draw( path.createTransformedShape( toScreen ) );
+		}
+	}
+
+	/**
+	 * Draws lines of text in the top left corner of the canvas.
+	 */
+	final static private class TextLinesRoi extends Roi
+	{
+		private volatile String[] lines = new String[ 0 ];
+
+		TextLinesRoi()
+		{
+			super( 0, 0, 1, 1 );
+		}
+
+		void setText( final String text )
+		{
+			lines = text.split( "\n" );
+		}
+
+		@Override
+		public void draw( final Graphics g )
+		{
+			final String[] l = lines;
+			final FontMetrics metrics = g.getFontMetrics();
+			g.setColor( getStrokeColor() );
+			for ( int i = 0; i < l.length; ++i )
+				g.drawString( l[ i ], 4, 4 + metrics.getAscent() + i * metrics.getHeight() );
+		}
+	}
+
 	abstract protected class Mapper
 	{
 		protected boolean interpolate = true;
@@ -154,16 +236,156 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 
 	abstract protected class AbstractMappingThread extends Thread
 	{
+		/**
+		 * Presents the newest frame completed by the mapping thread.  Frames
+		 * are triple buffered, the mapping thread renders into
+		 * {@link AbstractMappingThread#temp temp} while the presenter
+		 * converts and draws {@link AbstractMappingThread#target target},
+		 * completed frames wait in {@link AbstractMappingThread#ready ready}.
+		 * A frame that is replaced before it was presented is dropped.
+		 */
+		final private class Presenter extends Thread
+		{
+			/* ready holds a frame that was not presented yet */
+			private boolean fresh = false;
+
+			/* stage timings of the frame in ready and the presented frame */
+			final private long[] readyTimes = new long[ FrameStats.names.length ];
+			final private long[] times = new long[ FrameStats.names.length ];
+
+			private long dropped = 0;
+
+			/* start of the frame whose stats are shown */
+			private long statsShown = 0;
+
+			Presenter()
+			{
+				setName( "PresentationThread" );
+			}
+
+			/**
+			 * Swap temp with ready and wake up the presenter.  Called by the
+			 * mapping thread when temp is complete.
+			 *
+			 * @param frameTimes stage timings of the frame in temp
+			 * @param t start of the hand-over from {@link System#nanoTime()}
+			 */
+			synchronized void offer( final long[] frameTimes, final long t )
+			{
+				final Object pixels = ready.getPixels();
+				ready.setPixels( temp.getPixels() );
+				temp.setPixels( pixels );
+				System.arraycopy( frameTimes, 0, readyTimes, 0, readyTimes.length );
+				readyTimes[ FrameStats.SWAP ] = System.nanoTime() - t;
+				if ( fresh )
+					++dropped;
+				fresh = true;
+				notify();
+			}
+
+			@Override
+			final public void run()
+			{
+				try
+				{
+					while ( !isInterrupted() )
+					{
+						synchronized ( this )
+						{
+							while ( !fresh )
+								wait();
+							final Object pixels = target.getPixels();
+							target.setPixels( ready.getPixels() );
+							ready.setPixels( pixels );
+							System.arraycopy( readyTimes, 0, times, 0, times.length );
+							fresh = false;
+						}
+
+						final long t0 = System.nanoTime();
+						if ( showStats && t0 - statsShown > statsPeriod )
+						{
+							statsRoi.setText( stats.toString() + "\ndropped " + dropped );
+							statsShown = t0;
+						}
+						impTarget.updateAndDraw();
+						final long t1 = System.nanoTime();
+
+						for ( int stage = 0; stage < times.length; ++stage )
+							stats.record( stage, times[ stage ] );
+						stats.record( FrameStats.DRAW, t1 - t0 );
+						stats.endFrame( t1 );
+					}
+				}
+				catch ( final InterruptedException e ){}
+			}
+		}
+
 		final protected ImagePlus impSource;
 		final protected ImagePlus impTarget;
 		final protected ImageProcessor target;
 		final protected ImageProcessor temp;
+		final protected ImageProcessor ready;
+		final private Presenter presenter = new Presenter();
+
+		/* stage timings of the frame being mapped */
+		final private long[] frameTimes = new long[ FrameStats.names.length ];
+		private long frames = 0;
+
+		/* reduced resolution target for interactive frames */
+		final protected ImageProcessor preview;
+		final private int[] previewColumns;
+
+		/* FOV outline of the next frame, swapped with the path of fovRoi */
+		private GeneralPath fovPath = new GeneralPath();
+		final private FovOutline fovOutline = new FovOutline();
+
+		/* the FOV outline in the overlay of the source, guarded by fovOutline */
+		final private PathRoi fovRoi = new PathRoi();
+
+		/* source bounds of the painted and the next FOV outline, and their union */
+		final private Rectangle2D fovBounds = new Rectangle2D.Double();
+		final private Rectangle2D nextFovBounds = new Rectangle2D.Double();
+		final private Rectangle2D dirtyBounds = new Rectangle2D.Double();
+
+		/* from out-of-core source to overview coordinates */
+		final private AffineTransform overviewTransform = AffineTransform.getScaleInstance( 1.0 / overviewStep, 1.0 / overviewStep );
 
 		protected boolean visualize = true;
 		protected boolean pleaseRepaint;
 		protected boolean keepPainting;
 		protected double dt = 1;
 
+		/* time of the last key or wheel navigation */
+		protected long lastInteraction = 0;
+
+		/* the last frame was a preview and has to be refined */
+		private boolean refine = false;
+
+		/* frame rate cap, 0 renders as fast as possible */
+		protected double targetFps = Double.parseDouble( System.getProperty( "panorama.fps", "60" ) );
+		final public double getTargetFps(){ return targetFps; }
+		final public void setTargetFps( final double targetFps ){ this.targetFps = targetFps; }
+
+		/* repaint requests so far, requests during a skipped frame are not lost */
+		private long requests = 0;
+
+		/* pose of the last rendered frame, invalid after changes of anything else */
+		private boolean rendered = false;
+		private double renderedLambda, renderedPhi, renderedRho, renderedF;
+		private boolean renderedInterpolated, renderedPreview;
+
+		/* start of the last rendered frame and whether the thread was idle since */
+		private long lastStart = 0;
+		private boolean idle = true;
+
+		/* recorded and read by the presenter */
+		final protected FrameStats stats = new FrameStats();
+		protected boolean showStats = false;
+
+		/* overlay of the target showing stats */
+		final private TextLinesRoi statsRoi = new TextLinesRoi();
+		final private Overlay statsOverlay = new Overlay( statsRoi );
+
 		public AbstractMappingThread(
 				final ImagePlus impSource,
 				final ImagePlus impTarget,
@@ -174,47 +396,269 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 
 			this.target = target;
 			this.temp = target.createProcessor( target.getWidth(), target.getHeight() );
-			temp.snapshot();
+			this.ready = target.createProcessor( target.getWidth(), target.getHeight() );
+
+			final int s = target.getWidth() * target.getHeight() > maxPreviewPixels ? 4 : 2;
+			preview = target.createProcessor(
+					Math.max( 1, target.getWidth() / s ),
+					Math.max( 1, target.getHeight() / s ) );
+			previewColumns = upscaleColumns( preview.getWidth(), target.getWidth() );
+			fovRoi.setStrokeColor( Color.YELLOW );
+			statsRoi.setStrokeColor( Color.YELLOW );
 			this.setName( "MappingThread" );
 		}
 
-		abstract protected void map();
+		/**
+		 * Render the current view at lambda, phi, rho into target, the motion
+		 * of this frame has been applied.  Previews are rendered into
+		 * a reduced resolution target and should use nearest neighbor
+		 * sampling.  All target pixels must be written, targets are not
+		 * cleared between frames.
+		 */
+		abstract protected void map( final ImageProcessor target, final boolean preview );
+
+		/**
+		 * Whether full resolution frames are interpolated.
+		 */
+		abstract protected boolean isInterpolate();
 
 		@Override
 		final public void run()
 		{
+			presenter.start();
 			while ( !isInterrupted() )
 			{
-				final boolean b;
+				final boolean b, isPreview, valid;
+				final long r;
 				synchronized ( this )
 				{
+					/* pace to the target frame rate, requests meanwhile are coalesced */
+					try
+					{
+						if ( pleaseRepaint && targetFps > 0 )
+						{
+							final long period = ( long )( 1e9 / targetFps );
+							long wait;
+							while ( ( wait = lastStart + period - System.nanoTime() ) > 0 )
+								wait( wait / 1000000, ( int )( wait % 1000000 ) );
+						}
+					}
+					catch ( final InterruptedException e )
+					{
+						interrupt();
+						continue;
+					}
 					b = pleaseRepaint;
 					pleaseRepaint = keepPainting;
+					isPreview = keepPainting || System.currentTimeMillis() - lastInteraction < settleTime;
+					valid = rendered;
+					r = requests;
 				}
 				if ( b )
 				{
-					final long t = System.currentTimeMillis();
-
-					map();
-
-					final Object targetPixels = target.getPixels();
-					target.setPixels( temp.getPixels() );
-					temp.setPixels( targetPixels );
-					impTarget.updateAndDraw();
-
-					if ( visualize )
-						visualize( impSource, temp.getWidth(), temp.getHeight(), p );
-					dt = ( System.currentTimeMillis() - t ) / 1000f;
+					final boolean interpolated = isInterpolate();
+					final double f = p.getF();
+					if (
+							valid &&
+							dLambda == 0 &&
+							dPhi == 0 &&
+							lambda == renderedLambda &&
+							phi == renderedPhi &&
+							rho == renderedRho &&
+							f == renderedF &&
+							interpolated == renderedInterpolated &&
+							( isPreview || !renderedPreview ) )
+					{
+						/* nothing changed, idle until the next request */
+						synchronized ( this )
+						{
+							if ( requests == r )
+								pleaseRepaint = false;
+						}
+					}
+					else
+					{
+						renderedF = f;
+						renderedInterpolated = interpolated;
+						renderedPreview = isPreview;
+						synchronized ( this )
+						{
+							rendered = true;
+						}
+						render( isPreview );
+					}
 				}
 				synchronized ( this )
 				{
 					try
 					{
-						if ( !pleaseRepaint ) wait();
+						if ( !pleaseRepaint )
+						{
+							idle = true;
+							if ( refine && !keepPainting )
+							{
+								/* refine once navigation has settled */
+								final long wait = lastInteraction + settleTime - System.currentTimeMillis();
+								if ( wait > 0 )
+									wait( wait );
+								pleaseRepaint = true;
+							}
+							else
+								wait();
+						}
+					}
+					catch ( final InterruptedException e )
+					{
+						interrupt();
 					}
-					catch ( final InterruptedException e ){}
 				}
 			}
+			presenter.interrupt();
+			try
+			{
+				presenter.join();
+			}
+			catch ( final InterruptedException e ){}
+		}
+
+		final private void render( final boolean isPreview )
+		{
+			final long t0 = System.nanoTime();
+
+			/* time step of the motion, after idling the last one clamped to a frame period */
+			if ( !idle )
+				dt = ( t0 - lastStart ) / 1e9;
+			else
+				dt = Math.min( dt, targetFps > 0 ? 1.0 / targetFps : idleDt );
+			idle = false;
+			lastStart = t0;
+
+			/* the pose after the motion is what this frame shows */
+			lambda += dt * dLambda;
+			phi += dt * dPhi;
+			renderedLambda = lambda;
+			renderedPhi = phi;
+			renderedRho = rho;
+
+			if ( isPreview )
+			{
+				map( preview, true );
+				upscale( preview, temp, previewColumns );
+			}
+			else
+				map( temp, false );
+			refine = isPreview;
+
+			final long t1 = System.nanoTime();
+			frameTimes[ FrameStats.MAP ] = t1 - t0;
+
+			/* outline before handing temp over, p may change with the next frame */
+			if ( visualize )
+				visualize( temp.getWidth(), temp.getHeight() );
+
+			final long t2 = System.nanoTime();
+			frameTimes[ FrameStats.VISUALIZE ] = t2 - t1;
+
+			presenter.offer( frameTimes, t2 );
+			++frames;
+		}
+
+		/**
+		 * Replace the FOV outline in the overlay of the source canvas and
+		 * repaint the screen region covered by the previous and the new
+		 * outline only.  The source image itself is not redrawn, other rois
+		 * of the overlay are kept.  The outline roi, its path and bounds are
+		 * reused, such that no frame allocates.
+		 */
+		final private void visualize( final int w, final int h )
+		{
+			final ImageCanvas canvas = impSource.getCanvas();
+			if ( canvas == null )
+				return;
+			synchronized ( fovOutline )
+			{
+				if ( !visualize )
+					return;
+				/* half a screen pixel */
+				if ( overviewStep == 1 )
+					fovOutline.outline( fovPath, impSource.getWidth(), w, h, p, 0.5 / canvas.getMagnification() );
+				else
+					fovOutline.outline( fovPath, mappedImage.getWidth(), w, h, p, 0.5 * overviewStep / canvas.getMagnification() );
+				if ( fovOutline.getSegments() == 0 )
+				{
+					/* the border is outside of the output projection, all is visible */
+					removeFovRoi( canvas );
+					return;
+				}
+				fovOutline.getBounds( nextFovBounds );
+				if ( overviewStep != 1 )
+				{
+					fovPath.transform( overviewTransform );
+					nextFovBounds.setRect(
+							nextFovBounds.getX() / overviewStep,
+							nextFovBounds.getY() / overviewStep,
+							nextFovBounds.getWidth() / overviewStep,
+							nextFovBounds.getHeight() / overviewStep );
+				}
+				fovPath = fovRoi.swap( fovPath, nextFovBounds );
+
+				final Overlay overlay = impSource.getOverlay();
+				if ( overlay == null )
+					impSource.setOverlay( new Overlay( fovRoi ) );
+				else if ( !overlay.contains( fovRoi ) )
+				{
+					overlay.add( fovRoi );
+					canvas.repaint();
+				}
+				else
+				{
+					Rectangle2D.union( nextFovBounds, fovBounds, dirtyBounds );
+					repaint( canvas, dirtyBounds );
+				}
+				fovBounds.setRect( nextFovBounds );
+			}
+		}
+
+		/**
+		 * Repaint the screen region covered by the source rectangle r.
+		 */
+		final static private void repaint( final ImageCanvas canvas, final Rectangle2D r )
+		{
+			final int x0 = canvas.screenXD( r.getMinX() ) - 2;
+			final int y0 = canvas.screenYD( r.getMinY() ) - 2;
+			final int x1 = canvas.screenXD( r.getMaxX() ) + 2;
+			final int y1 = canvas.screenYD( r.getMaxY() ) + 2;
+			canvas.repaint( x0, y0, x1 - x0 + 1, y1 - y0 + 1 );
+		}
+
+		/**
+		 * Remove the FOV outline from the overlay of the source canvas, other
+		 * rois of the overlay are kept.  Call synchronized on fovOutline.
+		 *
+		 * @param canvas may be null
+		 */
+		final private void removeFovRoi( final ImageCanvas canvas )
+		{
+			final Overlay overlay = impSource.getOverlay();
+			if ( overlay != null && overlay.contains( fovRoi ) )
+			{
+				overlay.remove( fovRoi );
+				if ( canvas != null )
+					repaint( canvas, fovBounds );
+			}
+		}
+
+		/**
+		 * Stop outlining the FOV and remove the outline from the overlay of
+		 * the source canvas, other rois of the overlay are kept.
+		 */
+		final public void hideFovOutline()
+		{
+			synchronized ( fovOutline )
+			{
+				visualize = false;
+				removeFovRoi( impSource.getCanvas() );
+			}
 		}
 
 		final public void repaint( @SuppressWarnings( "hiding" ) final boolean keepPainting )
@@ -223,15 +667,147 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 			{
 				this.keepPainting = keepPainting;
 				pleaseRepaint = true;
+				++requests;
 				notify();
 			}
 		}
 
+		/**
+		 * Repaint as a preview, the full resolution frame follows when no
+		 * further interaction happened for {@link #settleTime} ms.
+		 */
+		final public void interact()
+		{
+			synchronized ( this )
+			{
+				lastInteraction = System.currentTimeMillis();
+				pleaseRepaint = true;
+				++requests;
+				notify();
+			}
+		}
+
+		/**
+		 * Render a frame even if the pose did not change, e.g. because the
+		 * source changed.  Unlike {@link #repaint(boolean)}, continuous
+		 * painting is left as is.
+		 */
+		final public void refresh()
+		{
+			synchronized ( this )
+			{
+				rendered = false;
+				pleaseRepaint = true;
+				++requests;
+				notify();
+			}
+		}
+
+		/**
+		 * Render the next requested frame even if the pose did not change.
+		 */
+		final public void invalidate()
+		{
+			synchronized ( this )
+			{
+				rendered = false;
+			}
+		}
+
 		abstract public void toggleInterpolation();
 
 		final public void toggleVisualization()
 		{
-			visualize = !visualize;
+			if ( visualize )
+				hideFovOutline();
+			else
+				visualize = true;
+			invalidate();
+		}
+
+		final public void toggleStats()
+		{
+			showStats = !showStats;
+			impTarget.setOverlay( showStats ? statsOverlay : null );
+			invalidate();
+		}
+	}
+
+	/* targets larger than this are previewed at 1/4 instead of 1/2 resolution */
+	final static protected int maxPreviewPixels = 1 << 20;
+
+	/* ns between updates of the stats overlay */
+	final static protected long statsPeriod = 250000000;
+
+	/* s, time step of the first frame after idling if the frame rate is not capped */
+	final static protected double idleDt = 1.0 / 60.0;
+
+	/* ms after the last key or wheel event until a preview is refined */
+	final static protected long settleTime = 150;
+
+	/**
+	 * Source column of each target column for nearest neighbor upscaling
+	 * from sw to tw columns.
+	 */
+	final static protected int[] upscaleColumns( final int sw, final int tw )
+	{
+		final int[] xs = new int[ tw ];
+		for ( int x = 0; x < tw; ++x )
+			xs[ x ] = Math.min( sw - 1, x * sw / tw );
+		return xs;
+	}
+
+	/**
+	 * Nearest neighbor upscaling of source into target.  Rows that map to
+	 * the same source row are copied.
+	 *
+	 * @param xs source columns from {@link #upscaleColumns(int, int)}
+	 */
+	final static protected void upscale( final ImageProcessor source, final ImageProcessor target, final int[] xs )
+	{
+		final int sw = source.getWidth();
+		final int sh = source.getHeight();
+		final int tw = target.getWidth();
+		final int th = target.getHeight();
+		final Object s = source.getPixels();
+		final Object t = target.getPixels();
+
+		int lastY = -1;
+		for ( int y = 0; y < th; ++y )
+		{
+			final int sy = Math.min( sh - 1, y * sh / th );
+			final int row = y * tw;
+			if ( sy == lastY )
+			{
+				System.arraycopy( t, row - tw, t, row, tw );
+				continue;
+			}
+			lastY = sy;
+			final int sRow = sy * sw;
+			if ( s instanceof byte[] )
+			{
+				final byte[] a = ( byte[] )s, b = ( byte[] )t;
+				for ( int x = 0; x < tw; ++x )
+					b[ row + x ] = a[ sRow + xs[ x ] ];
+			}
+			else if ( s instanceof short[] )
+			{
+				final short[] a = ( short[] )s, b = ( short[] )t;
+				for ( int x = 0; x < tw; ++x )
+					b[ row + x ] = a[ sRow + xs[ x ] ];
+			}
+			else if ( s instanceof float[] )
+			{
+				final float[] a = ( float[] )s, b = ( float[] )t;
+				for ( int x = 0; x < tw; ++x )
+					b[ row + x ] = a[ sRow + xs[ x ] ];
+			}
+			else
+			{
+				final int[] a = ( int[] )s, b = ( int[] )t;
+				for ( int x = 0; x < tw; ++x )
+					b[ row + x ] = a[ sRow + xs[ x ] ];
+			}
 		}
 	}
 
@@ -240,6 +816,11 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 	protected ImageProcessor ipSource;
 	private GUI gui;
 
+	/* out-of-core source, imp is then an overview of every overviewStep-th pixel */
+	protected MappedImage mappedImage;
+	protected TiledSource tiledSource;
+	protected int overviewStep = 1;
+
 	static protected int width = 400;
 	static protected int height = 300;
 	static protected double minLambda = 0;
@@ -247,6 +828,11 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 	static protected double hfov = 2 * Math.PI;
 	static protected double vfov = Math.PI;
 
+	/* stack playback */
+	static protected double playbackFps = 25;
+	static protected int lookAhead = 4;
+	private StackPlayer< ? > player;
+
 	final protected EquirectangularProjection p = new EquirectangularProjection();
 	final static private double step = Math.PI / 180.0;
 
@@ -269,13 +855,21 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 	@Override
 	public void run( final String arg )
     {
-		imp = IJ.getImage();
+		if ( "mapped".equals( arg ) )
+			imp = openMapped();
+		else
+		{
+			imp = IJ.getImage();
+
+			if ( imp == null )
+			{
+				IJ.error( "No image open." );
+				return;
+			}
+		}
 
 		if ( imp == null )
-		{
-			IJ.error( "No image open." );
 			return;
-		}
 
 		if ( !setup( imp ) )
 			return;
@@ -285,6 +879,81 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 
 	abstract protected AbstractMappingThread createPainter( final ImagePlus impViewer );
 
+	/**
+	 * Switch to the next {@link OutputProjection}.
+	 *
+	 * @return false if the viewer renders rectilinear only
+	 */
+	protected boolean nextOutput(){ return false; }
+
+	/**
+	 * Create the {@link StackPlayer} that prepares the slices of
+	 * {@link #imp} for {@link AbstractMappingThread#map(ImageProcessor,
+	 * boolean)}, starting at the current slice.
+	 *
+	 * @return null if the viewer cannot play imp
+	 */
+	protected StackPlayer< ? > createPlayer(){ return null; }
+
+	/**
+	 * Add the playback parameters to gd if imp is a stack.  The frame rate
+	 * defaults to that of imp if it has one.
+	 */
+	final static protected void addPlaybackFields( final GenericDialog gd, final ImagePlus imp )
+	{
+		if ( imp.getStackSize() < 2 )
+			return;
+		final double fps = imp.getCalibration().fps;
+		gd.addMessage( "Playback" );
+		gd.addNumericField( "frame rate : ", fps > 0 ? fps : playbackFps, 1 );
+		gd.addNumericField( "look-ahead slices : ", lookAhead, 0 );
+	}
+
+	/**
+	 * Read the fields added by
+	 * {@link #addPlaybackFields(GenericDialog, ImagePlus)}.
+	 */
+	final static protected void readPlaybackFields( final GenericDialog gd, final ImagePlus imp )
+	{
+		if ( imp.getStackSize() < 2 )
+			return;
+		playbackFps = Math.max( 0.1, gd.getNextNumber() );
+		lookAhead = Math.max( 1, ( int )gd.getNextNumber() );
+	}
+
+	/**
+	 * Start or pause playing the stack.  The view pose is kept, each new
+	 * slice is rendered like a repaint request.
+	 */
+	final private void togglePlayback()
+	{
+		if ( player == null )
+		{
+			player = createPlayer();
+			if ( player == null )
+			{
+				IJ.showStatus( "Nothing to play." );
+				return;
+			}
+		}
+		if ( player.isPlaying() )
+		{
+			player.stop();
+			IJ.showStatus( "Paused at slice " + player.getSlice() + "." );
+		}
+		else
+			player.play(
+					playbackFps,
+					new Runnable()
+					{
+						@Override
+						final public void run()
+						{
+							painter.refresh();
+						}
+					} );
+	}
+
 	protected GUI createGUI( final ImagePlus impViewer )
 	{
 		return new GUI( impViewer );
@@ -303,10 +972,7 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 		final ImagePlus impViewer = new ImagePlus( "Panorama View", ip );
 
 		/* initialize projection */
-		p.setMinLambda( minLambda );
-		p.setMinPhi( minPhi );
-		p.setLambdaPiScale( Math.PI / hfov * imp.getWidth() );
-		p.setPhiPiScale( Math.PI / vfov * ( imp.getHeight() - 1 ) );
+		initProjection( imp, minLambda, minPhi, hfov, vfov );
 		p.setTargetWidth( ip.getWidth() );
 		p.setTargetHeight( ip.getHeight() );
 		p.setF( 0.5 );
@@ -326,6 +992,30 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 		update( false );
     }
 
+	/**
+	 * Set the source parameters of {@link #p} for imp or the
+	 * {@link #mappedImage mapped image} if there is one.  In-heap sources
+	 * are sampled across the 360&deg; seam and at the pole without being
+	 * extended.
+	 */
+	final protected void initProjection(
+			final ImagePlus imp,
+			final double minLambda,
+			final double minPhi,
+			final double hfov,
+			final double vfov )
+	{
+		final int sourceWidth = mappedImage == null ? imp.getWidth() : mappedImage.getWidth();
+		final int sourceHeight = mappedImage == null ? imp.getHeight() : mappedImage.getHeight();
+
+		p.setMinLambda( minLambda );
+		p.setMinPhi( minPhi );
+		p.setLambdaPiScale( Math.PI / hfov * sourceWidth );
+		p.setPhiPiScale( Math.PI / vfov * ( sourceHeight - 1 ) );
+		p.setWrap( hfov == 2.0 * Math.PI );
+		p.setExtendBottom( vfov == Math.PI );
+	}
+
 	final static protected void prepareExtendedImage(
 			final ImageProcessor source,
 			final ImageProcessor target )
@@ -341,18 +1031,116 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 		target.copyBits( source, 0, 0, Blitter.COPY );
 	}
 
+	/* largest width of the overview of an out-of-core source */
+	final static protected int maxOverviewWidth = 2048;
+
+	/* edge length of the tiles read from an out-of-core source */
+	final static protected int sourceTileSize = 256;
+
+	/**
+	 * Ask for a raw or uncompressed TIFF file, map it as
+	 * {@link #mappedImage} and show an overview.
+	 *
+	 * @return the overview or null if cancelled or the file could not be
+	 * 		mapped
+	 */
+	final protected ImagePlus openMapped()
+	{
+		final OpenDialog od = new OpenDialog( "Open equirectangular panorama", null );
+		if ( od.getFileName() == null )
+			return null;
+		final File file = new File( od.getDirectory(), od.getFileName() );
+		try
+		{
+			if ( MappedImage.isTiff( file ) )
+				mappedImage = MappedImage.openTiff( file );
+			else
+			{
+				final GenericDialog gd = new GenericDialog( "Raw Panorama" );
+				gd.addChoice( "type : ", MappedImage.types, MappedImage.types[ MappedImage.RGB ] );
+				gd.addNumericField( "width : ", 0, 0 );
+				gd.addNumericField( "height : ", 0, 0 );
+				gd.addNumericField( "offset : ", 0, 0 );
+				gd.addCheckbox( "little-endian", false );
+				gd.showDialog();
+				if ( gd.wasCanceled() )
+					return null;
+				final int type = gd.getNextChoiceIndex();
+				final int w = ( int )gd.getNextNumber();
+				final int h = ( int )gd.getNextNumber();
+				final long offset = ( long )gd.getNextNumber();
+				mappedImage = MappedImage.openRaw( file, w, h, type, offset, gd.getNextBoolean() );
+			}
+			IJ.showStatus( "Reading overview..." );
+			overviewStep = ( mappedImage.getWidth() + maxOverviewWidth - 1 ) / maxOverviewWidth;
+			final ImagePlus overview = new ImagePlus( file.getName(), mappedImage.overview( overviewStep ) );
+			overview.show();
+			return overview;
+		}
+		catch ( final IOException e )
+		{
+			IJ.error( "Could not map " + file + ": " + e.getMessage() );
+			if ( mappedImage != null )
+				mappedImage.close();
+			mappedImage = null;
+			return null;
+		}
+	}
+
+	/**
+	 * Tile cache over {@link #mappedImage} extended like
+	 * {@link #prepareExtendedImage(ImageProcessor, ImageProcessor)}.
+	 */
+	final protected TiledSource createTiledSource( final double hfov, final double vfov )
+	{
+		return new TiledSource(
+				mappedImage,
+				hfov == 2.0 * Math.PI,
+				vfov == Math.PI,
+				sourceTileSize,
+				Runtime.getRuntime().maxMemory() / 4 );
+	}
+
 	final private void update( final boolean keepPainting )
 	{
 		painter.repaint( keepPainting );
 	}
 
+	final private void interact()
+	{
+		painter.interact();
+	}
+
+	/**
+	 * Release what the painter rendered from.  Called when the viewer is
+	 * closed, after the painter and its presenter have stopped and before
+	 * the source is closed.
+	 */
+	protected void release(){}
+
 	@Override
 	public void keyPressed( final KeyEvent e )
 	{
 		if ( e.getKeyCode() == KeyEvent.VK_ESCAPE || e.getKeyCode() == KeyEvent.VK_ENTER )
 		{
+			/* the frame in flight may still read the sources */
 			painter.interrupt();
-			imp.getCanvas().setDisplayList( null );
+			try
+			{
+				painter.join();
+			}
+			catch ( final InterruptedException ex )
+			{
+				Thread.currentThread().interrupt();
+			}
+			if ( player != null )
+				player.dispose();
+			painter.hideFovOutline();
+			release();
+			if ( tiledSource != null )
+				tiledSource.dispose();
+			if ( mappedImage != null )
+				mappedImage.close();
 			gui.restoreGui();
 			if ( e.getKeyCode() == KeyEvent.VK_ESCAPE )
 				gui.close();
@@ -373,38 +1161,37 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 			if ( e.getKeyCode() == KeyEvent.VK_LEFT )
 			{
 				lambda -= v * step;
-				update( false );
+				interact();
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_RIGHT )
 			{
 				lambda += v * step;
-				update( false );
+				interact();
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_UP )
 			{
 				phi -= v * step;
-				update( false );
+				interact();
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_DOWN )
 			{
 				phi += v * step;
-				update( false );
+				interact();
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_PLUS || e.getKeyCode() == KeyEvent.VK_EQUALS )
 			{
 				p.setF( p.getF() * ( 1 + 0.1f * v ) );
-				update( false );
+				interact();
 			}
 			else if ( e.getKeyCode() == KeyEvent.VK_MINUS )
 			{
 				p.setF( p.getF() / ( 1 + 0.1f * v ) );
-				update( false );
+				interact();
+			}
+			else if ( e.getKeyCode() == KeyEvent.VK_SPACE )
+			{
+				togglePlayback();
 			}
-//			else if ( e.getKeyCode() == KeyEvent.VK_SPACE )
-//			{
-//				renderCubeFaces( hfov, vfov );
-//				update( false );
-//			}
 			else if ( e.getKeyCode() == KeyEvent.VK_I )
 			{
 				painter.toggleInterpolation();
@@ -413,9 +1200,21 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 			else if ( e.getKeyCode() == KeyEvent.VK_V )
 			{
 				painter.toggleVisualization();
-				imp.getCanvas().setDisplayList( null );
 				update( false );
 			}
+			else if ( e.getKeyCode() == KeyEvent.VK_F )
+			{
+				painter.toggleStats();
+				update( false );
+			}
+			else if ( e.getKeyCode() == KeyEvent.VK_O )
+			{
+				if ( nextOutput() )
+				{
+					painter.invalidate();
+					update( false );
+				}
+			}
 			else if ( e.getKeyCode() == KeyEvent.VK_A )
 			{
 				naviMode = NaviMode.PAN_TILT;
@@ -457,6 +1256,9 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 						"ENTER/ESC - Leave interactive mode." + NL +
 						"I - Toggle interpolation." + NL +
 						"V - Toggle FOV visualization." + NL +
+						"F - Toggle frame statistics." + NL +
+						"O - Next output projection." + NL +
+						"SPACE - Play/pause stack." + NL +
 						"R - Roll-mode (roll via mouse drag)." + NL +
 						"P - Pan/Tilt-mode (pan/tilt via mouse drag)." );
 			}
@@ -496,7 +1298,7 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 		final double v = keyModfiedSpeed( e.getModifiersEx() );
 		final int s = e.getWheelRotation();
 		p.setF( p.getF() * ( 1 - 0.05f * s * v ) );
-		update( false );
+		interact();
 	}
 
 	@Override
@@ -551,105 +1353,4 @@ abstract public class AbstractPanorama_View implements PlugIn, KeyListener, Mous
 			oY = e.getY();
 		}
 	}
-
-
-	final static protected void visualize(
-			final ImagePlus imp,
-			final int w,
-			final int h,
-			final EquirectangularProjection p )
-	{
-		try
-		{
-			final double maxD = imp.getWidth() / 2;
-			final GeneralPath gp = new GeneralPath();
-			final double[] l = new double[]{ 0, 0 };
-			p.applyInverseInPlace( l );
-			double x0 = l[ 0 ];
-			gp.moveTo( l[ 0 ], l[ 1 ] );
-			for ( int x = 1; x < w; ++x )
-			{
-				l[ 0 ] = x;
-				l[ 1 ] = 0;
-				p.applyInverseInPlace( l );
-				final double dx = l[ 0 ] - x0;
-				if ( dx > maxD )
-				{
-					gp.lineTo( l[ 0 ] - imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else if ( dx < -maxD )
-				{
-					gp.lineTo( l[ 0 ] + imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else
-					gp.lineTo( l[ 0 ], l[ 1 ] );
-				x0 = l[ 0 ];
-			}
-			for ( int y = 1; y < h; ++y )
-			{
-				l[ 0 ] = w - 1;
-				l[ 1 ] = y;
-				p.applyInverseInPlace( l );
-				final double dx = l[ 0 ] - x0;
-				if ( dx > maxD )
-				{
-					gp.lineTo( l[ 0 ] - imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else if ( dx < -maxD )
-				{
-					gp.lineTo( l[ 0 ] + imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else
-					gp.lineTo( l[ 0 ], l[ 1 ] );
-				x0 = l[ 0 ];
-			}
-			for ( int x = w - 2; x >= 0; --x )
-			{
-				l[ 0 ] = x;
-				l[ 1 ] = h - 1;
-				p.applyInverseInPlace( l );
-				final double dx = l[ 0 ] - x0;
-				if ( dx > maxD )
-				{
-					gp.lineTo( l[ 0 ] - imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else if ( dx < -maxD )
-				{
-					gp.lineTo( l[ 0 ] + imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else
-					gp.lineTo( l[ 0 ], l[ 1 ] );
-				x0 = l[ 0 ];
-			}
-			for ( int y = h - 2; y >= 0; --y )
-			{
-				l[ 0 ] = 0;
-				l[ 1 ] = y;
-				p.applyInverseInPlace( l );
-				final double dx = l[ 0 ] - x0;
-				if ( dx > maxD )
-				{
-					gp.lineTo( l[ 0 ] - imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else if ( dx < -maxD )
-				{
-					gp.lineTo( l[ 0 ] + imp.getWidth(), l[ 1 ] );
-					gp.moveTo( l[ 0 ], l[ 1 ] );
-				}
-				else
-					gp.lineTo( l[ 0 ], l[ 1 ] );
-				x0 = l[ 0 ];
-			}
-			imp.getCanvas().setDisplayList( gp, Color.YELLOW, null );
-			imp.updateAndDraw();
-		}
-		catch ( final NoninvertibleModelException e ){}
-	}
 }
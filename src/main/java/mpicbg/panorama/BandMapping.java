@@ -0,0 +1,33 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+/**
+ * A mapping that can render a horizontal band of target rows independently
+ * of all other rows.  The transform is passed explicitly such that
+ * concurrent bands can each work with their own copy.
+ *
+ * @author Stephan Saalfeld
+ */
+public interface BandMapping< T >
+{
+	/**
+	 * Map rows [minY, maxY) of target using nearest neighbor sampling.
+	 */
+	public void mapBand(
+			final T transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY );
+
+	/**
+	 * Map rows [minY, maxY) of target using bilinear interpolation.
+	 */
+	public void mapInterpolatedBand(
+			final T transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY );
+}
@@ -0,0 +1,444 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The six faces of a cube map.  Faces have a width and height of
+ * {@link #getSize() size} + 1 such that interpolation at the cube edges
+ * stays within each face.
+ *
+ * Face coordinates relate to a viewing ray (x, y, z) in the frame of the
+ * front face as follows, (u, v) being in [-1, 1]:
+ *
+ * <pre>
+ * front  (  x / z,  y / z )  z &gt; 0
+ * right  ( -z / x,  y / x )  x &gt; 0
+ * back   (  x / z, -y / z )  z &lt; 0
+ * left   ( -z / x, -y / x )  x &lt; 0
+ * top    ( -x / y, -z / y )  y &lt; 0
+ * bottom (  x / y, -z / y )  y &gt; 0
+ * </pre>
+ *
+ * @author Stephan Saalfeld
+ */
+public class CubeMap
+{
+	final static public int FRONT = 0;
+	final static public int RIGHT = 1;
+	final static public int BACK = 2;
+	final static public int LEFT = 3;
+	final static public int TOP = 4;
+	final static public int BOTTOM = 5;
+
+	final static public String[] names = { "front", "right", "back", "left", "top", "bottom" };
+
+	/* rows between progress updates */
+	final static private int progressRows = 16;
+
+	/* smallest size of a pyramid level */
+	final static private int minPyramidSize = 16;
+
+	final protected ImageProcessor[] faces = new ImageProcessor[ 6 ];
+	final protected int size;
+
+	/* power of two pyramid, levels[ 0 ] is this */
+	protected CubeMap[] levels = new CubeMap[]{ this };
+
+	/**
+	 * Create six empty faces of the type of template.
+	 *
+	 * @param template
+	 * @param size
+	 */
+	public CubeMap( final ImageProcessor template, final int size )
+	{
+		this.size = size;
+		for ( int f = 0; f < 6; ++f )
+			faces[ f ] = template.createProcessor( size + 1, size + 1 );
+	}
+
+	final public int getSize(){ return size; }
+	final public ImageProcessor getFace( final int face ){ return faces[ face ]; }
+
+	final public int numLevels(){ return levels.length; }
+	final public CubeMap getLevel( final int level ){ return levels[ level ]; }
+
+	/**
+	 * Pyramid level for a target that samples scale face pixels per target
+	 * pixel, i.e. log<sub>2</sub>( scale ) rounded and clamped to the
+	 * available levels.
+	 */
+	final public int selectLevel( final double scale )
+	{
+		if ( scale <= 1 )
+			return 0;
+		final int level = ( int )( Math.log( scale ) / Math.log( 2 ) + 0.5 );
+		return Math.min( level, levels.length - 1 );
+	}
+
+	/**
+	 * Create the power of two pyramid of the faces down to
+	 * {@link #minPyramidSize}.  Level l has size {@link #getSize() size}
+	 * / 2<sup>l</sup> and is downsampled from level l - 1 with a [1 2 1]
+	 * tent filter that keeps the face edges at the edges.  The rows of all
+	 * six faces are split into bands that are processed in parallel.  The
+	 * levels of an existing pyramid are overwritten instead of allocated.
+	 */
+	public void createPyramid()
+	{
+		int n = 1;
+		while ( ( size >> n ) >= minPyramidSize )
+			++n;
+		final CubeMap[] pyramid = new CubeMap[ n ];
+		pyramid[ 0 ] = this;
+		for ( int l = 1; l < n; ++l )
+		{
+			final CubeMap finer = pyramid[ l - 1 ];
+			final CubeMap coarser = levels.length == n ? levels[ l ] : new CubeMap( faces[ 0 ], size >> l );
+			final int th = coarser.size + 1;
+			RowBands.render(
+					6 * th,
+					new RowBands.Band()
+					{
+						@Override
+						final public void render( final int minY, final int maxY )
+						{
+							for ( int f = minY / th; f * th < maxY; ++f )
+								downsample(
+										finer.faces[ f ],
+										coarser.faces[ f ],
+										Math.max( 0, minY - f * th ),
+										Math.min( th, maxY - f * th ) );
+						}
+					} );
+			pyramid[ l ] = coarser;
+		}
+		levels = pyramid;
+	}
+
+	/**
+	 * Split pixels into float channels, one for gray, three for RGB.
+	 */
+	final static float[][] channels( final ImageProcessor ip )
+	{
+		final Object pixels = ip.getPixels();
+		final int n = ip.getWidth() * ip.getHeight();
+		if ( pixels instanceof int[] )
+		{
+			final int[] rgb = ( int[] )pixels;
+			final float[][] c = new float[ 3 ][ n ];
+			for ( int i = 0; i < n; ++i )
+			{
+				c[ 0 ][ i ] = ( rgb[ i ] >> 16 ) & 0xff;
+				c[ 1 ][ i ] = ( rgb[ i ] >> 8 ) & 0xff;
+				c[ 2 ][ i ] = rgb[ i ] & 0xff;
+			}
+			return c;
+		}
+		final float[] c = new float[ n ];
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] a = ( byte[] )pixels;
+			for ( int i = 0; i < n; ++i )
+				c[ i ] = a[ i ] & 0xff;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] a = ( short[] )pixels;
+			for ( int i = 0; i < n; ++i )
+				c[ i ] = a[ i ] & 0xffff;
+		}
+		else
+			System.arraycopy( pixels, 0, c, 0, n );
+		return new float[][]{ c };
+	}
+
+	/**
+	 * Store float channels in the pixels of ip, rounding for integer types.
+	 */
+	final static void setChannels( final ImageProcessor ip, final float[][] c )
+	{
+		setRow( ip.getPixels(), 0, ip.getWidth() * ip.getHeight(), c );
+	}
+
+	/**
+	 * Store n samples of float channels in pixels starting at offset,
+	 * rounding for integer types.
+	 */
+	final static private void setRow( final Object pixels, final int offset, final int n, final float[][] c )
+	{
+		if ( pixels instanceof int[] )
+		{
+			final int[] rgb = ( int[] )pixels;
+			for ( int i = 0; i < n; ++i )
+				rgb[ offset + i ] =
+						0xff000000 |
+						( ( int )( c[ 0 ][ i ] + 0.5f ) << 16 ) |
+						( ( int )( c[ 1 ][ i ] + 0.5f ) << 8 ) |
+						( int )( c[ 2 ][ i ] + 0.5f );
+		}
+		else if ( pixels instanceof byte[] )
+		{
+			final byte[] a = ( byte[] )pixels;
+			for ( int i = 0; i < n; ++i )
+				a[ offset + i ] = ( byte )( int )( c[ 0 ][ i ] + 0.5f );
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] a = ( short[] )pixels;
+			for ( int i = 0; i < n; ++i )
+				a[ offset + i ] = ( short )( int )( c[ 0 ][ i ] + 0.5f );
+		}
+		else
+			System.arraycopy( c[ 0 ], 0, pixels, offset, n );
+	}
+
+	/**
+	 * Add weight times n pixels starting at offset to float channels c.
+	 */
+	final static private void addRow( final Object pixels, final int offset, final int n, final float weight, final float[][] c )
+	{
+		if ( weight == 0 )
+			return;
+		if ( pixels instanceof int[] )
+		{
+			final int[] rgb = ( int[] )pixels;
+			final float[] r = c[ 0 ];
+			final float[] g = c[ 1 ];
+			final float[] b = c[ 2 ];
+			for ( int i = 0; i < n; ++i )
+			{
+				final int v = rgb[ offset + i ];
+				r[ i ] += weight * ( ( v >> 16 ) & 0xff );
+				g[ i ] += weight * ( ( v >> 8 ) & 0xff );
+				b[ i ] += weight * ( v & 0xff );
+			}
+		}
+		else if ( pixels instanceof byte[] )
+		{
+			final byte[] a = ( byte[] )pixels;
+			final float[] t = c[ 0 ];
+			for ( int i = 0; i < n; ++i )
+				t[ i ] += weight * ( a[ offset + i ] & 0xff );
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] a = ( short[] )pixels;
+			final float[] t = c[ 0 ];
+			for ( int i = 0; i < n; ++i )
+				t[ i ] += weight * ( a[ offset + i ] & 0xffff );
+		}
+		else
+		{
+			final float[] a = ( float[] )pixels;
+			final float[] t = c[ 0 ];
+			for ( int i = 0; i < n; ++i )
+				t[ i ] += weight * a[ offset + i ];
+		}
+	}
+
+	/**
+	 * Add weight times row y of an image of w x h pixels, linearly
+	 * interpolated and clamped at the edges, to float channels c.
+	 */
+	final static private void addRow(
+			final Object pixels,
+			final int w,
+			final int h,
+			double y,
+			final double weight,
+			final float[][] c )
+	{
+		y = Math.max( 0, Math.min( h - 1, y ) );
+		final int y0 = Math.min( ( int )y, h - 2 );
+		final double dy = y - y0;
+		addRow( pixels, y0 * w, w, ( float )( weight * ( 1 - dy ) ), c );
+		addRow( pixels, ( y0 + 1 ) * w, w, ( float )( weight * dy ), c );
+	}
+
+	/**
+	 * Filter a row or column of n source samples with stride s at
+	 * coordinate x with a [1 2 1] tent of radius r, clamped at the edges.
+	 */
+	final static private float tent(
+			final float[] a,
+			final int offset,
+			final int stride,
+			final int n,
+			final double x,
+			final double r )
+	{
+		return ( float )( 0.25 * (
+				linear( a, offset, stride, n, x - r ) +
+				2 * linear( a, offset, stride, n, x ) +
+				linear( a, offset, stride, n, x + r ) ) );
+	}
+
+	final static private double linear(
+			final float[] a,
+			final int offset,
+			final int stride,
+			final int n,
+			double x )
+	{
+		x = Math.max( 0, Math.min( n - 1, x ) );
+		final int x0 = Math.min( ( int )x, n - 2 );
+		final double dx = x - x0;
+		final double v0 = a[ offset + x0 * stride ];
+		return v0 + dx * ( a[ offset + ( x0 + 1 ) * stride ] - v0 );
+	}
+
+	/**
+	 * Downsample source into target such that the corner pixels of source
+	 * map to the corner pixels of target, both being square.
+	 */
+	final static void downsample( final ImageProcessor source, final ImageProcessor target )
+	{
+		downsample( source, target, 0, target.getHeight() );
+	}
+
+	/**
+	 * Downsample rows [minY, maxY) of target, see
+	 * {@link #downsample(ImageProcessor, ImageProcessor)}.  Pixels are read
+	 * from and written to the pixel arrays directly, the columns are
+	 * filtered into one row of source width and the rows into one row of
+	 * target width per channel.
+	 */
+	final static void downsample(
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		final int sw = source.getWidth();
+		final int sh = source.getHeight();
+		final int tw = target.getWidth();
+		final int th = target.getHeight();
+		final double scaleX = ( double )( sw - 1 ) / ( tw - 1 );
+		final double scaleY = ( double )( sh - 1 ) / ( th - 1 );
+		final double rx = 0.5 * scaleX;
+		final double ry = 0.5 * scaleY;
+
+		final Object sp = source.getPixels();
+		final Object tp = target.getPixels();
+		final int n = sp instanceof int[] ? 3 : 1;
+		final float[][] column = new float[ n ][ sw ];
+		final float[][] row = new float[ n ][ tw ];
+		for ( int y = minY; y < maxY; ++y )
+		{
+			for ( int c = 0; c < n; ++c )
+				Arrays.fill( column[ c ], 0 );
+			final double ys = y * scaleY;
+			addRow( sp, sw, sh, ys - ry, 0.25, column );
+			addRow( sp, sw, sh, ys, 0.5, column );
+			addRow( sp, sw, sh, ys + ry, 0.25, column );
+			for ( int c = 0; c < n; ++c )
+				for ( int x = 0; x < tw; ++x )
+					row[ c ][ x ] = tent( column[ c ], 0, 1, sw, x * scaleX, rx );
+			setRow( tp, y * tw, tw, row );
+		}
+	}
+
+	/**
+	 * Orient projection such that it looks at the center of face.
+	 *
+	 * @param projection
+	 * @param face
+	 */
+	final static public void orient( final EquirectangularProjection projection, final int face )
+	{
+		projection.resetOrientation();
+		switch ( face )
+		{
+		case BACK:
+			projection.pan( Math.PI );
+			break;
+		case LEFT:
+			projection.pan( Math.PI / 2 );
+			break;
+		case RIGHT:
+			projection.pan( -Math.PI / 2 );
+			break;
+		case TOP:
+			projection.tilt( -Math.PI / 2 );
+			break;
+		case BOTTOM:
+			projection.tilt( Math.PI / 2 );
+			break;
+		}
+	}
+
+	/**
+	 * Render all faces from an equirectangular source.  The rows of all six
+	 * faces are rendered concurrently on the shared {@link RowBands#getPool()
+	 * pool}, each band with its own copy of the projection.  Progress is
+	 * reported through {@link IJ#showProgress(int, int)}.
+	 *
+	 * @param source equirectangular source, extended for interpolation
+	 * 		unless projection {@link EquirectangularProjection#isWrap() wraps}
+	 * 		and {@link EquirectangularProjection#isExtendBottom() extends} it
+	 * @param projection source parameters (&lambda;, &phi;, scale)
+	 */
+	public void render( final ImageProcessor source, final EquirectangularProjection projection )
+	{
+		render( source, null, projection );
+	}
+
+	/**
+	 * Render all faces from a tiled equirectangular source.
+	 *
+	 * @see #render(ImageProcessor, EquirectangularProjection)
+	 */
+	public void render( final TiledSource source, final EquirectangularProjection projection )
+	{
+		render( null, source, projection );
+	}
+
+	final private void render(
+			final ImageProcessor source,
+			final TiledSource tiledSource,
+			final EquirectangularProjection projection )
+	{
+		final EquirectangularProjection q = projection.clone();
+		q.resetOrientation();
+		q.setTargetWidth( size );
+		q.setTargetHeight( size );
+		q.setF( 0.5f );
+
+		final EquirectangularMapping mapping = new EquirectangularMapping( q );
+		final int faceHeight = size + 1;
+		final int rows = 6 * faceHeight;
+		final AtomicInteger done = new AtomicInteger();
+
+		IJ.showStatus( "Rendering cube faces..." );
+		IJ.showProgress( 0, rows );
+		RowBands.render(
+				rows,
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						final EquirectangularProjection t = q.clone();
+						for ( int y = minY; y < maxY; )
+						{
+							final int face = y / faceHeight;
+							final int faceY = y - face * faceHeight;
+							final int n = Math.min( Math.min( maxY - y, faceHeight - faceY ), progressRows );
+							orient( t, face );
+							if ( tiledSource == null )
+								mapping.mapInterpolatedBand( t, source, faces[ face ], faceY, faceY + n );
+							else
+								mapping.mapInterpolatedBand( t, tiledSource, faces[ face ], faceY, faceY + n );
+							y += n;
+							IJ.showProgress( done.addAndGet( n ), rows );
+						}
+					}
+				} );
+		IJ.showProgress( rows, rows );
+	}
+}
@@ -0,0 +1,417 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent cache of rendered {@link CubeMap CubeMaps}.  Cube maps are
+ * stored as raw files named by a hash of the source pixels, the
+ * equirectangular parameters of the source and the cube size.  They are
+ * read back through {@link FileChannel#map(FileChannel.MapMode, long, long)
+ * memory mapping}, such that concurrent readers share the operating
+ * system's page cache.  Faces are copied from the mapping into the
+ * processors' pixel arrays because {@link ImageProcessor ImageProcessors}
+ * cannot wrap mapped buffers.
+ *
+ * The cache directory is ~/.cache/panorama unless the system property
+ * <code>panorama.cache</code> says otherwise.  Its cube files are limited
+ * to {@link #getLimit() panorama.cache.limit} MB, storing a cube map deletes
+ * the least recently used ones exceeding that.  Loading a cube map marks it
+ * used.
+ *
+ * @author Stephan Saalfeld
+ */
+final public class CubeMapCache
+{
+	private CubeMapCache(){}
+
+	final static private long MAGIC = 0x50414e4f43554245L; /* PANOCUBE */
+	final static private int VERSION = 1;
+	final static private int HEADER_SIZE = 8 + 4 * 4;
+
+	/* elements per hash chunk, chunks are hashed in parallel */
+	final static private int chunkSize = 1 << 20;
+
+	/* elements per mapped or written block, mappings are limited to 2GB */
+	final static private int blockSize = 1 << 24;
+
+	/* default size limit of the cache directory in MB */
+	final static private long defaultLimit = 4096;
+
+	final static public File getDirectory()
+	{
+		final String path = System.getProperty( "panorama.cache" );
+		if ( path != null )
+			return new File( path );
+		return new File( new File( System.getProperty( "user.home" ), ".cache" ), "panorama" );
+	}
+
+	/**
+	 * Maximal total size of the cached cube files in bytes.
+	 */
+	final static public long getLimit()
+	{
+		long mb = defaultLimit;
+		final String limit = System.getProperty( "panorama.cache.limit" );
+		if ( limit != null )
+		{
+			try
+			{
+				mb = Long.parseLong( limit.trim() );
+			}
+			catch ( final NumberFormatException e )
+			{
+				IJ.log( "Invalid panorama.cache.limit " + limit + ", using " + defaultLimit + "MB." );
+			}
+		}
+		return Math.max( 0, mb ) << 20;
+	}
+
+	/**
+	 * Bytes per pixel of ImageProcessor pixel arrays.
+	 */
+	final static private int bytesPerPixel( final Object pixels )
+	{
+		if ( pixels instanceof byte[] )
+			return 1;
+		else if ( pixels instanceof short[] )
+			return 2;
+		else
+			return 4;
+	}
+
+	final static private long mix( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	final static private long hashChunk( final Object pixels, final int min, final int max )
+	{
+		long h = 0x9e3779b97f4a7c15L;
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] a = ( byte[] )pixels;
+			for ( int i = min; i < max; ++i )
+				h = ( h ^ a[ i ] ) * 0x100000001b3L;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] a = ( short[] )pixels;
+			for ( int i = min; i < max; ++i )
+				h = ( h ^ a[ i ] ) * 0x100000001b3L;
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] a = ( float[] )pixels;
+			for ( int i = min; i < max; ++i )
+				h = ( h ^ Float.floatToRawIntBits( a[ i ] ) ) * 0x100000001b3L;
+		}
+		else
+		{
+			final int[] a = ( int[] )pixels;
+			for ( int i = min; i < max; ++i )
+				h = ( h ^ a[ i ] ) * 0x100000001b3L;
+		}
+		return mix( h );
+	}
+
+	/**
+	 * 64bit hash of all pixels of source.  Fixed size chunks are hashed in
+	 * parallel and combined in order.
+	 */
+	final static public long hash( final ImageProcessor source )
+	{
+		final Object pixels = source.getPixels();
+		final int n = source.getWidth() * source.getHeight();
+		final int numChunks = ( n + chunkSize - 1 ) / chunkSize;
+		final long[] chunks = new long[ numChunks ];
+		RowBands.render(
+				numChunks,
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						for ( int c = minY; c < maxY; ++c )
+							chunks[ c ] = hashChunk( pixels, c * chunkSize, Math.min( n, ( c + 1 ) * chunkSize ) );
+					}
+				} );
+		long h = mix( source.getWidth() * 31L + source.getHeight() ) ^ bytesPerPixel( pixels );
+		for ( final long c : chunks )
+			h = mix( h * 31 + c );
+		return h;
+	}
+
+	/**
+	 * Cache key for the cube map of size cubeSize rendered from source with
+	 * projection.
+	 */
+	final static public String key(
+			final ImageProcessor source,
+			final EquirectangularProjection projection,
+			final int cubeSize )
+	{
+		long h = hash( source );
+		h = mix( h * 31 + source.getClass().getName().hashCode() );
+		h = mix( h * 31 + Double.doubleToLongBits( projection.getMinLambda() ) );
+		h = mix( h * 31 + Double.doubleToLongBits( projection.getMinPhi() ) );
+		h = mix( h * 31 + Double.doubleToLongBits( projection.getLambdaPiScale() ) );
+		h = mix( h * 31 + Double.doubleToLongBits( projection.getPhiPiScale() ) );
+		h = mix( h * 31 + ( projection.isFastMath() ? 1 : 0 ) );
+		h = mix( h * 31 + cubeSize );
+		return String.format( "%016x-%d", h, cubeSize );
+	}
+
+	/**
+	 * Copy n pixels starting at position from channel into pixels through
+	 * read-only memory mappings.
+	 */
+	final static private void read(
+			final FileChannel channel,
+			long position,
+			final Object pixels,
+			final int n ) throws IOException
+	{
+		final int bpp = bytesPerPixel( pixels );
+		for ( int i = 0; i < n; i += blockSize )
+		{
+			final int m = Math.min( blockSize, n - i );
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, position, ( long )m * bpp );
+			buffer.order( ByteOrder.nativeOrder() );
+			if ( pixels instanceof byte[] )
+				buffer.get( ( byte[] )pixels, i, m );
+			else if ( pixels instanceof short[] )
+				buffer.asShortBuffer().get( ( short[] )pixels, i, m );
+			else if ( pixels instanceof float[] )
+				buffer.asFloatBuffer().get( ( float[] )pixels, i, m );
+			else
+				buffer.asIntBuffer().get( ( int[] )pixels, i, m );
+			position += ( long )m * bpp;
+		}
+	}
+
+	final static private void write(
+			final FileChannel channel,
+			long position,
+			final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+	}
+
+	/**
+	 * Write n pixels to channel starting at position, staged through
+	 * buffer.
+	 */
+	final static private void write(
+			final FileChannel channel,
+			long position,
+			final Object pixels,
+			final int n,
+			final ByteBuffer buffer ) throws IOException
+	{
+		final int bpp = bytesPerPixel( pixels );
+		buffer.order( ByteOrder.nativeOrder() );
+		for ( int i = 0; i < n; i += blockSize )
+		{
+			final int m = Math.min( blockSize, n - i );
+			buffer.clear();
+			if ( pixels instanceof byte[] )
+				buffer.put( ( byte[] )pixels, i, m );
+			else if ( pixels instanceof short[] )
+				buffer.asShortBuffer().put( ( short[] )pixels, i, m );
+			else if ( pixels instanceof float[] )
+				buffer.asFloatBuffer().put( ( float[] )pixels, i, m );
+			else
+				buffer.asIntBuffer().put( ( int[] )pixels, i, m );
+			buffer.position( 0 );
+			buffer.limit( m * bpp );
+			write( channel, position, buffer );
+			position += ( long )m * bpp;
+		}
+	}
+
+	final static private File file( final String key )
+	{
+		return new File( getDirectory(), key + ".cube" );
+	}
+
+	/**
+	 * Load the faces of cubeMap from the cache.
+	 *
+	 * @return true if the cube map was found, false otherwise
+	 */
+	final static public boolean load( final String key, final CubeMap cubeMap )
+	{
+		final File file = file( key );
+		if ( !file.isFile() )
+			return false;
+
+		final Object template = cubeMap.getFace( 0 ).getPixels();
+		final int faceSize = ( cubeMap.getSize() + 1 ) * ( cubeMap.getSize() + 1 );
+		final long faceBytes = ( long )faceSize * bytesPerPixel( template );
+
+		try
+		{
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				if ( channel.size() != HEADER_SIZE + 6 * faceBytes )
+					return false;
+
+				final ByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE );
+				if (
+						header.getLong() != MAGIC ||
+						header.getInt() != VERSION ||
+						header.getInt() != ( ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0 ) ||
+						header.getInt() != bytesPerPixel( template ) ||
+						header.getInt() != cubeMap.getSize() )
+					return false;
+
+				for ( int f = 0; f < 6; ++f )
+					read( channel, HEADER_SIZE + f * faceBytes, cubeMap.getFace( f ).getPixels(), faceSize );
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not read cube-face cache " + file + ": " + e.getMessage() );
+			return false;
+		}
+		file.setLastModified( System.currentTimeMillis() );
+		return true;
+	}
+
+	/**
+	 * Store the faces of cubeMap in the cache.  The file is written under a
+	 * temporary name and renamed when complete such that concurrent readers
+	 * never see partial files.  Cube maps larger than the
+	 * {@link #getLimit() limit} are not stored.
+	 */
+	final static public void store( final String key, final CubeMap cubeMap )
+	{
+		final File dir = getDirectory();
+		final File file = file( key );
+		final File tmp = new File( dir, key + "." + System.nanoTime() + ".tmp" );
+
+		final Object template = cubeMap.getFace( 0 ).getPixels();
+		final int faceSize = ( cubeMap.getSize() + 1 ) * ( cubeMap.getSize() + 1 );
+		final long faceBytes = ( long )faceSize * bytesPerPixel( template );
+
+		final long limit = getLimit();
+		if ( HEADER_SIZE + 6 * faceBytes > limit )
+			return;
+
+		try
+		{
+			if ( !dir.isDirectory() && !dir.mkdirs() )
+				throw new IOException( "Cannot create " + dir );
+
+			final RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+				header.putLong( MAGIC );
+				header.putInt( VERSION );
+				header.putInt( ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0 );
+				header.putInt( bytesPerPixel( template ) );
+				header.putInt( cubeMap.getSize() );
+				header.flip();
+				write( channel, 0, header );
+
+				final ByteBuffer buffer = ByteBuffer.allocateDirect( blockSize * bytesPerPixel( template ) );
+				for ( int f = 0; f < 6; ++f )
+					write( channel, HEADER_SIZE + f * faceBytes, cubeMap.getFace( f ).getPixels(), faceSize, buffer );
+				channel.force( true );
+			}
+			finally
+			{
+				raf.close();
+			}
+			if ( !tmp.renameTo( file ) )
+			{
+				file.delete();
+				if ( !tmp.renameTo( file ) )
+					throw new IOException( "Cannot rename " + tmp + " to " + file );
+			}
+		}
+		catch ( final IOException e )
+		{
+			tmp.delete();
+			IJ.log( "Could not write cube-face cache " + file + ": " + e.getMessage() );
+			return;
+		}
+		evict( dir, file, limit );
+	}
+
+	/**
+	 * Delete the least recently used cube files in dir, except keep, until
+	 * they take at most limit bytes.
+	 */
+	final static private void evict( final File dir, final File keep, final long limit )
+	{
+		final File[] files = dir.listFiles(
+				new FileFilter()
+				{
+					@Override
+					final public boolean accept( final File f )
+					{
+						return f.isFile() && f.getName().endsWith( ".cube" );
+					}
+				} );
+		if ( files == null )
+			return;
+
+		/* read once, sorting must not see files change */
+		final long[] lastModified = new long[ files.length ];
+		final Integer[] order = new Integer[ files.length ];
+		long size = 0;
+		for ( int i = 0; i < files.length; ++i )
+		{
+			lastModified[ i ] = files[ i ].lastModified();
+			order[ i ] = i;
+			size += files[ i ].length();
+		}
+		Arrays.sort(
+				order,
+				new Comparator< Integer >()
+				{
+					@Override
+					final public int compare( final Integer a, final Integer b )
+					{
+						return Long.compare( lastModified[ a ], lastModified[ b ] );
+					}
+				} );
+
+		for ( int i = 0; i < order.length && size > limit; ++i )
+		{
+			final File f = files[ order[ i ] ];
+			if ( f.equals( keep ) )
+				continue;
+			final long length = f.length();
+			if ( f.delete() )
+				size -= length;
+		}
+	}
+}
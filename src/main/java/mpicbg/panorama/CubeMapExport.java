@@ -0,0 +1,374 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes a multi-resolution tile pyramid of the six cube faces of an
+ * equirectangular source, in-heap or {@link TiledSource tiled}, to disk.
+ * Levels have face size {@link #getSize(int) size} / 2<sup>l</sup> + 1
+ * like the levels of {@link CubeMap#createPyramid()}, the coarsest level
+ * fits into a single tile.
+ *
+ * Faces are rendered one after the other in strips of one tile row.  The
+ * tiles of a strip are rendered and written in parallel and then reduced
+ * into the next coarser level with the [1 2 1] tent of
+ * {@link CubeMap#createPyramid()}, such that the source is read in a
+ * single pass from top to bottom of each face.  Besides the tiles being
+ * written, each level but the coarsest keeps two tile rows and one pixel
+ * row of the current face, memory does not depend on the size of the
+ * source.
+ *
+ * Tiles are written to <code>&lt;z&gt;/&lt;face&gt;/&lt;y&gt;_&lt;x&gt;.&lt;format&gt;</code>
+ * with zoom level z = 0 being the coarsest, {@link #descriptor} lists face
+ * sizes and tile counts per zoom level.  Tiles at the right and bottom
+ * border of a face are smaller than {@link #getTileSize() tileSize}.
+ *
+ * @author Stephan Saalfeld
+ */
+public class CubeMapExport
+{
+	final static public String descriptor = "pyramid.txt";
+
+	final protected ImageProcessor source;
+	final protected TiledSource tiledSource;
+	final protected ImageProcessor template;
+	final protected EquirectangularProjection projection;
+	final protected EquirectangularMapping mapping;
+
+	final protected int size;
+	final protected int tileSize;
+	final protected int[] sizes;
+	final protected int[] tilesPerSide;
+
+	/* image format of the tiles as understood by ImageIO */
+	protected String format = "png";
+	final public String getFormat(){ return format; }
+	final public void setFormat( final String format ){ this.format = format; }
+
+	/**
+	 * @param source equirectangular source, extended for interpolation
+	 * 		unless projection {@link EquirectangularProjection#isWrap() wraps}
+	 * 		and {@link EquirectangularProjection#isExtendBottom() extends} it
+	 * @param projection source parameters (&lambda;, &phi;, scale)
+	 * @param size face size of the finest level
+	 * @param tileSize
+	 */
+	public CubeMapExport(
+			final ImageProcessor source,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize )
+	{
+		this( source, null, source, projection, size, tileSize );
+	}
+
+	/**
+	 * @param source tiled equirectangular source
+	 * @param projection source parameters (&lambda;, &phi;, scale)
+	 * @param size face size of the finest level
+	 * @param tileSize
+	 */
+	public CubeMapExport(
+			final TiledSource source,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize )
+	{
+		this( null, source, source.getTemplate(), projection, size, tileSize );
+	}
+
+	private CubeMapExport(
+			final ImageProcessor source,
+			final TiledSource tiledSource,
+			final ImageProcessor template,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize )
+	{
+		this.source = source;
+		this.tiledSource = tiledSource;
+		this.template = template;
+		this.size = size;
+		this.tileSize = tileSize;
+
+		this.projection = projection.clone();
+		this.projection.resetOrientation();
+		this.projection.setTargetWidth( size );
+		this.projection.setTargetHeight( size );
+		this.projection.setF( 0.5f );
+		mapping = new EquirectangularMapping( this.projection );
+
+		int n = 1;
+		while ( ( size >> ( n - 1 ) ) + 1 > tileSize && ( size >> n ) > 0 )
+			++n;
+		sizes = new int[ n ];
+		tilesPerSide = new int[ n ];
+		for ( int l = 0; l < n; ++l )
+		{
+			sizes[ l ] = ( size >> l ) + 1;
+			tilesPerSide[ l ] = ( sizes[ l ] + tileSize - 1 ) / tileSize;
+		}
+	}
+
+	final public int getSize(){ return size; }
+
+	/**
+	 * Width and height of the faces at level, level 0 being the finest.
+	 */
+	final public int getSize( final int level ){ return sizes[ level ]; }
+	final public int getTileSize(){ return tileSize; }
+	final public int numTiles( final int level ){ return tilesPerSide[ level ]; }
+	final public int numLevels(){ return sizes.length; }
+
+	/**
+	 * Write all tiles and the {@link #descriptor} into directory.  Progress
+	 * is reported through {@link IJ#showProgress(int, int)}.  Failures to
+	 * write tiles are thrown as {@link RuntimeException RuntimeExceptions}
+	 * caused by the {@link IOException}.
+	 */
+	public void export( final File directory ) throws IOException
+	{
+		final int n = sizes.length;
+		int tiles = 0;
+		for ( int l = 0; l < n; ++l )
+		{
+			tiles += 6 * tilesPerSide[ l ] * tilesPerSide[ l ];
+			for ( int face = 0; face < 6; ++face )
+			{
+				final File dir = new File( new File( directory, Integer.toString( n - 1 - l ) ), CubeMap.names[ face ] );
+				if ( !dir.isDirectory() && !dir.mkdirs() )
+					throw new IOException( "Could not create " + dir );
+			}
+		}
+
+		final PrintWriter out = new PrintWriter( new File( directory, descriptor ) );
+		try
+		{
+			out.println( "tileSize " + tileSize );
+			out.println( "format " + format );
+			for ( int z = 0; z < n; ++z )
+				out.println( "level " + z + " " + sizes[ n - 1 - z ] + " " + tilesPerSide[ n - 1 - z ] );
+		}
+		finally
+		{
+			out.close();
+		}
+
+		final AtomicInteger done = new AtomicInteger();
+		IJ.showStatus( "Exporting cube face tiles..." );
+		IJ.showProgress( 0, tiles );
+		for ( int face = 0; face < 6; ++face )
+			exportFace( directory, face, done, tiles );
+		IJ.showProgress( tiles, tiles );
+	}
+
+	final private void exportFace(
+			final File directory,
+			final int face,
+			final AtomicInteger done,
+			final int tiles )
+	{
+		/* level l rows 2kT - 1 to 2kT + 2T - 1 for strip k of level l + 1 */
+		final ImageProcessor[] rows = new ImageProcessor[ sizes.length - 1 ];
+		for ( int l = 0; l < rows.length; ++l )
+			rows[ l ] = template.createProcessor( sizes[ l ], 2 * tileSize + 1 );
+
+		final EquirectangularProjection q = projection.clone();
+		CubeMap.orient( q, face );
+
+		for ( int ty = 0; ty < tilesPerSide[ 0 ]; ++ty )
+		{
+			final int y0 = ty * tileSize;
+			final int row = ty;
+			RowBands.render(
+					tilesPerSide[ 0 ],
+					new RowBands.Band()
+					{
+						@Override
+						final public void render( final int minX, final int maxX )
+						{
+							final EquirectangularProjection t = q.clone();
+							for ( int tx = minX; tx < maxX; ++tx )
+							{
+								final int x0 = tx * tileSize;
+								final ImageProcessor ip = template.createProcessor(
+										Math.min( tileSize, sizes[ 0 ] - x0 ),
+										Math.min( tileSize, sizes[ 0 ] - y0 ) );
+								if ( tiledSource == null )
+									mapping.mapInterpolatedTile( t, source, ip, x0, y0 );
+								else
+									mapping.mapInterpolatedTile( t, tiledSource, ip, x0, y0 );
+								emit( directory, 0, face, tx, row, ip, rows );
+								IJ.showProgress( done.incrementAndGet(), tiles );
+							}
+						}
+					} );
+			reduce( directory, 0, face, ty, rows, done, tiles );
+		}
+	}
+
+	/**
+	 * Render the strip of level + 1 that is complete after strip ty of
+	 * level.
+	 */
+	final private void reduce(
+			final File directory,
+			final int level,
+			final int face,
+			final int ty,
+			final ImageProcessor[] rows,
+			final AtomicInteger done,
+			final int tiles )
+	{
+		if ( level == rows.length || ( ty % 2 == 0 && ty != tilesPerSide[ level ] - 1 ) )
+			return;
+
+		final int k = ty / 2;
+		final int y0 = k * tileSize;
+		final int s = sizes[ level + 1 ];
+		if ( y0 < s )
+		{
+			RowBands.render(
+					tilesPerSide[ level + 1 ],
+					new RowBands.Band()
+					{
+						@Override
+						final public void render( final int minX, final int maxX )
+						{
+							for ( int tx = minX; tx < maxX; ++tx )
+							{
+								final int x0 = tx * tileSize;
+								final ImageProcessor ip = template.createProcessor(
+										Math.min( tileSize, s - x0 ),
+										Math.min( tileSize, s - y0 ) );
+								downsample( rows[ level ], 2 * y0 - 1, sizes[ level ], x0, y0, ip );
+								emit( directory, level + 1, face, tx, k, ip, rows );
+								IJ.showProgress( done.incrementAndGet(), tiles );
+							}
+						}
+					} );
+			reduce( directory, level + 1, face, k, rows, done, tiles );
+		}
+
+		/* the last row is the first row for the next strip */
+		final ImageProcessor r = rows[ level ];
+		System.arraycopy( r.getPixels(), 2 * tileSize * r.getWidth(), r.getPixels(), 0, r.getWidth() );
+	}
+
+	/**
+	 * Write a tile and keep it in the rows of its level for the next
+	 * coarser level.
+	 */
+	final private void emit(
+			final File directory,
+			final int level,
+			final int face,
+			final int tx,
+			final int ty,
+			final ImageProcessor ip,
+			final ImageProcessor[] rows )
+	{
+		try
+		{
+			writeTile( directory, sizes.length - 1 - level, face, tx, ty, ip );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		if ( level < rows.length )
+		{
+			final ImageProcessor r = rows[ level ];
+			final int w = ip.getWidth();
+			final int rw = r.getWidth();
+			final int offset = ( ty % 2 * tileSize + 1 ) * rw + tx * tileSize;
+			for ( int y = 0; y < ip.getHeight(); ++y )
+				System.arraycopy( ip.getPixels(), y * w, r.getPixels(), offset + y * rw, w );
+		}
+	}
+
+	/**
+	 * Downsample the rows of a level of size s, whose first row is row y,
+	 * into the tile at (x0, y0) of the next coarser level.  Pixel (x, y)
+	 * is the [1 2 1] tent of pixel (2x, 2y), clamped at the face edges.
+	 */
+	final static private void downsample(
+			final ImageProcessor rows,
+			final int y,
+			final int s,
+			final int x0,
+			final int y0,
+			final ImageProcessor target )
+	{
+		final int w = target.getWidth();
+		final int h = target.getHeight();
+		final int rw = rows.getWidth();
+
+		/* source region of the tile */
+		final int sx0 = Math.max( 0, 2 * x0 - 1 );
+		final int sy0 = Math.max( 0, 2 * y0 - 1 );
+		final int sw = Math.min( s - 1, 2 * ( x0 + w ) - 1 ) - sx0 + 1;
+		final int sh = Math.min( s - 1, 2 * ( y0 + h ) - 1 ) - sy0 + 1;
+		final ImageProcessor region = rows.createProcessor( sw, sh );
+		for ( int r = 0; r < sh; ++r )
+			System.arraycopy( rows.getPixels(), ( sy0 - y + r ) * rw + sx0, region.getPixels(), r * sw, sw );
+
+		final float[][] c = CubeMap.channels( region );
+		final float[][] t = new float[ c.length ][ w * h ];
+		for ( int yt = 0; yt < h; ++yt )
+		{
+			final int ys = 2 * ( y0 + yt );
+			final int ya = Math.max( 0, ys - 1 ) - sy0;
+			final int yb = ys - sy0;
+			final int yc = Math.min( s - 1, ys + 1 ) - sy0;
+			for ( int xt = 0; xt < w; ++xt )
+			{
+				final int xs = 2 * ( x0 + xt );
+				final int xa = Math.max( 0, xs - 1 ) - sx0;
+				final int xb = xs - sx0;
+				final int xc = Math.min( s - 1, xs + 1 ) - sx0;
+				for ( int k = 0; k < c.length; ++k )
+				{
+					final float[] a = c[ k ];
+					final float v =
+							a[ ya * sw + xa ] + 2 * a[ ya * sw + xb ] + a[ ya * sw + xc ] +
+							2 * ( a[ yb * sw + xa ] + 2 * a[ yb * sw + xb ] + a[ yb * sw + xc ] ) +
+							a[ yc * sw + xa ] + 2 * a[ yc * sw + xb ] + a[ yc * sw + xc ];
+					t[ k ][ yt * w + xt ] = v / 16;
+				}
+			}
+		}
+		CubeMap.setChannels( target, t );
+	}
+
+	/**
+	 * Write tile (tx, ty) of face at zoom level z.  Tiles other than 8-bit
+	 * and RGB are converted to 8-bit using their display range.
+	 */
+	protected void writeTile(
+			final File directory,
+			final int z,
+			final int face,
+			final int tx,
+			final int ty,
+			final ImageProcessor ip ) throws IOException
+	{
+		final File file = new File(
+				new File( new File( directory, Integer.toString( z ) ), CubeMap.names[ face ] ),
+				ty + "_" + tx + "." + format );
+		final int bitDepth = ip.getBitDepth();
+		final BufferedImage image = ( bitDepth == 8 || bitDepth == 24 ? ip : ip.convertToByte( true ) ).getBufferedImage();
+		if ( !ImageIO.write( image, format, file ) )
+			throw new IOException( "No writer for " + format + " images." );
+	}
+}
@@ -0,0 +1,720 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Renders a {@link CubeMap} into a target in a single pass.  The viewing ray
+ * of each target pixel is calculated once, stepped along the row, and the
+ * face is picked from its dominant axis.
+ *
+ * Faces whose footprint is off-screen are culled.  Rows are mapped in
+ * spans of {@link #spanLength} pixels, spans that begin and end on the same
+ * face are stepped along that face's homogeneous coordinates without
+ * picking faces per pixel.
+ *
+ * With a {@link #setTolerance(double) tolerance}, {@link CubeMap CubeMaps}
+ * are rendered through an adaptive mesh, rays are calculated and projected
+ * onto the faces at its vertices only.
+ *
+ * {@link TiledCubeMap TiledCubeMaps} are sampled tile by tile, the kernel
+ * is re-bound whenever the sampled tile changes.
+ *
+ * Bands are rendered by reusable {@link RowBands.Job jobs}, cameras,
+ * kernels and ray arrays are kept per thread such that steady state frames
+ * do not allocate.
+ *
+ * @author Stephan Saalfeld
+ */
+public class CubeMapMapping
+{
+	/* face coordinates (u, v, w) = ( su * r[ au ], sv * r[ av ], sw * r[ aw ] ), see CubeMap */
+	final static private int[][] axes = {
+		{ 0, 2, 4 },
+		{ 4, 2, 0 },
+		{ 0, 2, 4 },
+		{ 4, 2, 0 },
+		{ 0, 4, 2 },
+		{ 0, 4, 2 } };
+
+	final static private double[][] signs = {
+		{ 1, 1, 1 },
+		{ -1, 1, 1 },
+		{ -1, 1, -1 },
+		{ 1, 1, -1 },
+		{ 1, 1, -1 },
+		{ 1, -1, 1 } };
+
+	final protected RectlinearCamera camera;
+
+	/* per thread state of the bands */
+	final static private class Scratch
+	{
+		final private RectlinearCamera camera = new RectlinearCamera();
+		final private PixelKernel[] kernels = new PixelKernel[ 6 ];
+		private PixelKernel tileKernel;
+
+		/* faces whose kernels are bound in the current band */
+		private int bound;
+
+		final private double[] r = new double[ 6 ];
+		final private double[] t = new double[ 2 ];
+
+		/* face coordinates of a row of a mesh cell or a span */
+		final private double[] xs = new double[ Math.max( meshSize, spanLength ) ];
+		final private double[] ys = new double[ Math.max( meshSize, spanLength ) ];
+
+		/* the current mesh, see #mapMesh */
+		private CubeMap cubeMap;
+		private ImageProcessor target;
+		private double halfSize;
+		private int width;
+		private int maxY;
+	}
+
+	final private ThreadLocal< Scratch > scratch = new ThreadLocal< Scratch >()
+	{
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+	/* state of the current frame */
+	private CubeMap frameCubeMap;
+	private TiledCubeMap frameTiles;
+	private ImageProcessor frameTarget;
+	private int frameVisible;
+	private int frameLevel;
+	final private double[] visibleRay = new double[ 6 ];
+
+	final private RowBands.Job cubeMapJob = new RowBands.Job(
+			new RowBands.Band()
+			{
+				@Override
+				final public void render( final int minY, final int maxY )
+				{
+					mapBand( camera, frameCubeMap, frameTarget, frameVisible, minY, maxY );
+				}
+			} );
+
+	final private RowBands.Job tilesJob = new RowBands.Job(
+			new RowBands.Band()
+			{
+				@Override
+				final public void render( final int minY, final int maxY )
+				{
+					mapBand( camera, frameTiles, frameLevel, frameTarget, minY, maxY );
+				}
+			} );
+
+	protected boolean interpolate = true;
+	final public boolean isInterpolate(){ return interpolate; }
+	final public void setInterpolate( final boolean interpolate ){ this.interpolate = interpolate; }
+
+	/* maximal face coordinate error in px of the adaptive mesh, exact if 0 */
+	protected double tolerance = 0;
+	final public double getTolerance(){ return tolerance; }
+	final public void setTolerance( final double tolerance ){ this.tolerance = tolerance; }
+
+	/* target pixels per side of the initial mesh cells, a power of 2 */
+	final static private int meshSize = 32;
+
+	/* target pixels per span of a row that is checked for a single face */
+	final static private int spanLength = 16;
+
+	/* maximal deviation of a fixed point span from the exact projection in face pixels */
+	final static private double maxSpanError = 1.0 / 16.0;
+
+	/* visible faces of the last frame as a bit mask */
+	protected int visibleFaces = 0x3f;
+	final public int getVisibleFaces(){ return visibleFaces; }
+
+	public CubeMapMapping( final RectlinearCamera camera )
+	{
+		this.camera = camera;
+	}
+
+	final public RectlinearCamera getTransform(){ return camera; }
+
+	/**
+	 * Index of the face hit by ray (x, y, z).
+	 */
+	final static public int face( final double x, final double y, final double z )
+	{
+		final double ax = Math.abs( x );
+		final double ay = Math.abs( y );
+		final double az = Math.abs( z );
+		if ( az >= ax && az >= ay )
+			return z > 0 ? CubeMap.FRONT : CubeMap.BACK;
+		else if ( ax >= ay )
+			return x > 0 ? CubeMap.RIGHT : CubeMap.LEFT;
+		else
+			return y < 0 ? CubeMap.TOP : CubeMap.BOTTOM;
+	}
+
+	/**
+	 * Bit mask of the faces visible through camera c.  A face is visible if
+	 * the ray through one of the target's border pixels hits it or if its
+	 * center is on-screen.
+	 */
+	final static public int visibleFaces( final PanoramaCamera< ? > c )
+	{
+		return visibleFaces( c, new double[ 6 ] );
+	}
+
+	/**
+	 * @see #visibleFaces(PanoramaCamera)
+	 *
+	 * @param r ray scratch of length 6
+	 */
+	final static public int visibleFaces( final PanoramaCamera< ? > c, final double[] r )
+	{
+		final int w = ( int )c.getTargetWidth();
+		final int h = ( int )c.getTargetHeight();
+		int mask = 0;
+
+		c.ray( 0, r );
+		for ( int x = 0; x < w; ++x )
+			mask |= 1 << face( r[ 0 ] + x * r[ 1 ], r[ 2 ] + x * r[ 3 ], r[ 4 ] + x * r[ 5 ] );
+		c.ray( h - 1, r );
+		for ( int x = 0; x < w; ++x )
+			mask |= 1 << face( r[ 0 ] + x * r[ 1 ], r[ 2 ] + x * r[ 3 ], r[ 4 ] + x * r[ 5 ] );
+		for ( int y = 1; y < h - 1; ++y )
+		{
+			c.ray( y, r );
+			mask |= 1 << face( r[ 0 ], r[ 2 ], r[ 4 ] );
+			mask |= 1 << face( r[ 0 ] + ( w - 1 ) * r[ 1 ], r[ 2 ] + ( w - 1 ) * r[ 3 ], r[ 4 ] + ( w - 1 ) * r[ 5 ] );
+		}
+
+		/* face centers, the inverse of the rotation i is its transpose */
+		final double tms = c.targetMaxSize;
+		for ( int f = 0; f < 6; ++f )
+		{
+			if ( ( mask & ( 1 << f ) ) != 0 )
+				continue;
+			final double dx, dy, dz;
+			switch ( f )
+			{
+			case CubeMap.FRONT:  dx = c.i.m20;  dy = c.i.m21;  dz = c.i.m22;  break;
+			case CubeMap.BACK:   dx = -c.i.m20; dy = -c.i.m21; dz = -c.i.m22; break;
+			case CubeMap.RIGHT:  dx = c.i.m00;  dy = c.i.m01;  dz = c.i.m02;  break;
+			case CubeMap.LEFT:   dx = -c.i.m00; dy = -c.i.m01; dz = -c.i.m02; break;
+			case CubeMap.TOP:    dx = -c.i.m10; dy = -c.i.m11; dz = -c.i.m12; break;
+			default:             dx = c.i.m10;  dy = c.i.m11;  dz = c.i.m12;
+			}
+			if ( dz > 0 )
+			{
+				final double x = dx / dz * c.f * tms + c.targetWidth2;
+				final double y = dy / dz * c.f * tms + c.targetHeight2;
+				if ( x >= 0 && x <= w && y >= 0 && y <= h )
+					mask |= 1 << f;
+			}
+		}
+		return mask;
+	}
+
+	/* pyramid level of the last frame */
+	protected int level = 0;
+	final public int getLevel(){ return level; }
+
+	/**
+	 * Face pixels per target pixel at the center of the view.
+	 */
+	final static public double scale( final PanoramaCamera< ? > c, final int cubeSize )
+	{
+		return 0.5 * cubeSize / ( c.getF() * c.targetMaxSize );
+	}
+
+	/**
+	 * Render cubeMap into target with the current camera.  If cubeMap has a
+	 * {@link CubeMap#createPyramid() pyramid}, the level is selected from
+	 * the current focal length and the ratio of face to target pixels.
+	 */
+	synchronized public void map( final CubeMap pyramid, final ImageProcessor target )
+	{
+		camera.setTargetWidth( target.getWidth() );
+		camera.setTargetHeight( target.getHeight() );
+		visibleFaces = visibleFaces( camera, visibleRay );
+		level = pyramid.selectLevel( scale( camera, pyramid.getSize() ) );
+
+		frameCubeMap = pyramid.getLevel( level );
+		frameTarget = target;
+		frameVisible = visibleFaces;
+		cubeMapJob.render( target.getHeight() );
+	}
+
+	/**
+	 * Render rows [minY, maxY) of target with this thread's copy of camera.
+	 *
+	 * @param camera
+	 * @param cubeMap
+	 * @param target
+	 * @param visible bit mask of visible faces
+	 * @param minY
+	 * @param maxY
+	 */
+	public void mapBand(
+			final RectlinearCamera camera,
+			final CubeMap cubeMap,
+			final ImageProcessor target,
+			final int visible,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = this.scratch.get();
+		final RectlinearCamera c = scratch.camera;
+		c.set( camera );
+		final PixelKernel[] kernels = scratch.kernels;
+		for ( int f = 0; f < 6; ++f )
+			if ( ( visible & ( 1 << f ) ) != 0 )
+				kernels[ f ] = PixelKernel.reuse( kernels[ f ], cubeMap.getFace( f ), target );
+		scratch.bound = visible;
+
+		final double halfSize = 0.5 * cubeMap.getSize();
+		if ( tolerance > 0 )
+		{
+			mapMesh( cubeMap, scratch, target, halfSize, minY, maxY );
+			return;
+		}
+
+		final double[] r = scratch.r;
+		final int tw = target.getWidth();
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			c.ray( y, r );
+			final double x0 = r[ 0 ], dx = r[ 1 ], y0 = r[ 2 ], dy = r[ 3 ], z0 = r[ 4 ], dz = r[ 5 ];
+			for ( int a = 0; a < tw; a += spanLength )
+			{
+				final int b = Math.min( a + spanLength, tw ) - 1;
+				final int f = face( x0 + a * dx, y0 + a * dy, z0 + a * dz );
+				if ( f == face( x0 + b * dx, y0 + b * dy, z0 + b * dz ) )
+					span( cubeMap, scratch, target, f, halfSize, a, b, row );
+				else
+					for ( int x = a; x <= b; ++x )
+						sample( cubeMap, scratch, target, x0 + x * dx, y0 + x * dy, z0 + x * dz, halfSize, row + x );
+			}
+		}
+	}
+
+	/**
+	 * Render pixels [a, b] of the row whose ray is in scratch.r.  Both end
+	 * rays hit face f, face regions are convex in the target, such that all
+	 * rays between them hit f and the face's homogeneous coordinates are
+	 * linear along the span.  Nearest neighbor spans whose projection
+	 * deviates by at most {@link #maxSpanError} face pixels from a linear
+	 * function are stepped in 48.16 fixed point without division.  Both
+	 * paths round half up, face coordinates being clamped to [0, size].
+	 * Interpolated spans calculate their face coordinates in a separate
+	 * pass of plain arithmetic and are interpolated by a single kernel call.
+	 */
+	final private void span(
+			final CubeMap cubeMap,
+			final Scratch scratch,
+			final ImageProcessor target,
+			final int f,
+			final double halfSize,
+			final int a,
+			final int b,
+			final int row )
+	{
+		final double[] r = scratch.r;
+		final PixelKernel kernel = kernel( cubeMap, scratch, target, f );
+		final int au = axes[ f ][ 0 ];
+		final int av = axes[ f ][ 1 ];
+		final int aw = axes[ f ][ 2 ];
+		final double su = signs[ f ][ 0 ] * halfSize;
+		final double sv = signs[ f ][ 1 ] * halfSize;
+		final double sw = signs[ f ][ 2 ];
+		final double u0 = su * r[ au ], du = su * r[ au + 1 ];
+		final double v0 = sv * r[ av ], dv = sv * r[ av + 1 ];
+		final double w0 = sw * r[ aw ], dw = sw * r[ aw + 1 ];
+		final double size = halfSize + halfSize;
+
+		if ( !interpolate && b - a > 1 )
+		{
+			final double wa = 1.0 / ( w0 + a * dw );
+			final double wb = 1.0 / ( w0 + b * dw );
+			final double ua = ( u0 + a * du ) * wa + halfSize;
+			final double va = ( v0 + a * dv ) * wa + halfSize;
+			final double ub = ( u0 + b * du ) * wb + halfSize;
+			final double vb = ( v0 + b * dv ) * wb + halfSize;
+			final double m = 0.5 * ( a + b );
+			final double wm = 1.0 / ( w0 + m * dw );
+			if (
+					Math.abs( ( u0 + m * du ) * wm + halfSize - 0.5 * ( ua + ub ) ) <= maxSpanError &&
+					Math.abs( ( v0 + m * dv ) * wm + halfSize - 0.5 * ( va + vb ) ) <= maxSpanError )
+			{
+				final int max = ( int )size;
+				final double n = 65536.0 / ( b - a );
+				long fu = ( long )Math.floor( ( ua + 0.5 ) * 65536.0 );
+				long fv = ( long )Math.floor( ( va + 0.5 ) * 65536.0 );
+				final long dfu = ( long )( ( ub - ua ) * n );
+				final long dfv = ( long )( ( vb - va ) * n );
+				for ( int x = a; x <= b; ++x, fu += dfu, fv += dfv )
+					kernel.nearest(
+							Math.max( 0, Math.min( max, ( int )( fu >> 16 ) ) ),
+							Math.max( 0, Math.min( max, ( int )( fv >> 16 ) ) ),
+							row + x );
+				return;
+			}
+		}
+
+		if ( interpolate )
+		{
+			final double[] xs = scratch.xs;
+			final double[] ys = scratch.ys;
+			final int n = b - a + 1;
+			for ( int k = 0; k < n; ++k )
+			{
+				final int x = a + k;
+				final double s = 1.0 / ( w0 + x * dw );
+				xs[ k ] = Math.max( 0, Math.min( size, ( u0 + x * du ) * s + halfSize ) );
+				ys[ k ] = Math.max( 0, Math.min( size, ( v0 + x * dv ) * s + halfSize ) );
+			}
+			kernel.bilinear( xs, ys, 0, n, row + a );
+			return;
+		}
+
+		for ( int x = a; x <= b; ++x )
+		{
+			final double s = 1.0 / ( w0 + x * dw );
+			final double tx = Math.max( 0, Math.min( size, ( u0 + x * du ) * s + halfSize ) );
+			final double ty = Math.max( 0, Math.min( size, ( v0 + x * dv ) * s + halfSize ) );
+			kernel.nearest( ( int )( tx + 0.5 ), ( int )( ty + 0.5 ), row + x );
+		}
+	}
+
+	/**
+	 * Map rows [minY, maxY) of target through an adaptive mesh.  Rays are
+	 * projected onto the faces at the corners of cells of {@link #meshSize}
+	 * target pixels only, and at the midpoints of their edges and centers.
+	 * Cells that span more than one face or whose midpoints deviate more
+	 * than {@link #tolerance} from the bilinear interpolation of the corners
+	 * are split, all others interpolate face coordinates bilinearly.  Face
+	 * regions are convex in the target, such that a cell whose samples hit
+	 * one face is entirely on that face.  Cells of a single pixel are exact.
+	 */
+	final private void mapMesh(
+			final CubeMap cubeMap,
+			final Scratch s,
+			final ImageProcessor target,
+			final double halfSize,
+			final int minY,
+			final int maxY )
+	{
+		s.cubeMap = cubeMap;
+		s.target = target;
+		s.halfSize = halfSize;
+		s.width = target.getWidth();
+		s.maxY = maxY;
+		final double[] t = s.t;
+		try
+		{
+			for ( int y = minY; y < maxY; y += meshSize )
+			{
+				for ( int x = 0; x < s.width; x += meshSize )
+				{
+					final int fa = vertex( s, x, y );
+					final double ax = t[ 0 ];
+					final double ay = t[ 1 ];
+					final int fb = vertex( s, x + meshSize, y );
+					final double bx = t[ 0 ];
+					final double by = t[ 1 ];
+					final int fc = vertex( s, x, y + meshSize );
+					final double cx = t[ 0 ];
+					final double cy = t[ 1 ];
+					final int fd = vertex( s, x + meshSize, y + meshSize );
+					cell( s, x, y, meshSize, fa, ax, ay, fb, bx, by, fc, cx, cy, fd, t[ 0 ], t[ 1 ] );
+				}
+			}
+		}
+		finally
+		{
+			s.cubeMap = null;
+			s.target = null;
+		}
+	}
+
+	/**
+	 * Face hit by the ray through target pixel (x, y), its face coordinates
+	 * are stored in s.t.
+	 */
+	final static private int vertex( final Scratch s, final int x, final int y )
+	{
+		final double[] r = s.r;
+		s.camera.ray( y, r );
+		return project( r[ 0 ] + x * r[ 1 ], r[ 2 ] + x * r[ 3 ], r[ 4 ] + x * r[ 5 ], s.halfSize, s.t );
+	}
+
+	/**
+	 * Render the cell of size<sup>2</sup> pixels at (x, y) with face
+	 * coordinates a at (x, y), b at (x + size, y), c at (x, y + size) and d
+	 * at (x + size, y + size) on faces fa, fb, fc and fd, or split it.
+	 */
+	final private void cell(
+			final Scratch s,
+			final int x,
+			final int y,
+			final int size,
+			final int fa,
+			final double ax,
+			final double ay,
+			final int fb,
+			final double bx,
+			final double by,
+			final int fc,
+			final double cx,
+			final double cy,
+			final int fd,
+			final double dx,
+			final double dy )
+	{
+		if ( x >= s.width || y >= s.maxY )
+			return;
+
+		final int row = s.width * y + x;
+
+		if ( size == 1 )
+		{
+			final PixelKernel kernel = kernel( s.cubeMap, s, s.target, fa );
+			if ( interpolate )
+				kernel.bilinear( ax, ay, row );
+			else
+				kernel.nearest( ( int )( ax + 0.5 ), ( int )( ay + 0.5 ), row );
+			return;
+		}
+
+		final double[] t = s.t;
+		final int half = size / 2;
+		final int fTop = vertex( s, x + half, y );
+		final double topX = t[ 0 ];
+		final double topY = t[ 1 ];
+		final int fLeft = vertex( s, x, y + half );
+		final double leftX = t[ 0 ];
+		final double leftY = t[ 1 ];
+		final int fCenter = vertex( s, x + half, y + half );
+		final double centerX = t[ 0 ];
+		final double centerY = t[ 1 ];
+		final int fRight = vertex( s, x + size, y + half );
+		final double rightX = t[ 0 ];
+		final double rightY = t[ 1 ];
+		final int fBottom = vertex( s, x + half, y + size );
+		final double bottomX = t[ 0 ];
+		final double bottomY = t[ 1 ];
+
+		final boolean oneFace =
+				fa == fb && fa == fc && fa == fd &&
+				fa == fTop && fa == fLeft && fa == fCenter && fa == fRight && fa == fBottom;
+		final double error = Math.max(
+				Math.max(
+						Math.max( Math.abs( topX - 0.5 * ( ax + bx ) ), Math.abs( topY - 0.5 * ( ay + by ) ) ),
+						Math.max( Math.abs( leftX - 0.5 * ( ax + cx ) ), Math.abs( leftY - 0.5 * ( ay + cy ) ) ) ),
+				Math.max(
+						Math.max(
+								Math.max( Math.abs( rightX - 0.5 * ( bx + dx ) ), Math.abs( rightY - 0.5 * ( by + dy ) ) ),
+								Math.max( Math.abs( bottomX - 0.5 * ( cx + dx ) ), Math.abs( bottomY - 0.5 * ( cy + dy ) ) ) ),
+						Math.max( Math.abs( centerX - 0.25 * ( ax + bx + cx + dx ) ), Math.abs( centerY - 0.25 * ( ay + by + cy + dy ) ) ) ) );
+
+		if ( !( oneFace && error <= tolerance ) )
+		{
+			cell( s, x, y, half, fa, ax, ay, fTop, topX, topY, fLeft, leftX, leftY, fCenter, centerX, centerY );
+			cell( s, x + half, y, half, fTop, topX, topY, fb, bx, by, fCenter, centerX, centerY, fRight, rightX, rightY );
+			cell( s, x, y + half, half, fLeft, leftX, leftY, fCenter, centerX, centerY, fc, cx, cy, fBottom, bottomX, bottomY );
+			cell( s, x + half, y + half, half, fCenter, centerX, centerY, fRight, rightX, rightY, fBottom, bottomX, bottomY, fd, dx, dy );
+			return;
+		}
+
+		final PixelKernel kernel = kernel( s.cubeMap, s, s.target, fa );
+		final double[] xs = s.xs;
+		final double[] ys = s.ys;
+		final int n = Math.min( size, s.width - x );
+		final int m = Math.min( size, s.maxY - y );
+		final double scale = 1.0 / size;
+		for ( int j = 0; j < m; ++j )
+		{
+			final double v = j * scale;
+			final double x0 = ax + v * ( cx - ax );
+			final double y0 = ay + v * ( cy - ay );
+			final double x1 = bx + v * ( dx - bx );
+			final double y1 = by + v * ( dy - by );
+			final int offset = row + s.width * j;
+			if ( interpolate )
+			{
+				for ( int k = 0; k < n; ++k )
+				{
+					final double u = k * scale;
+					xs[ k ] = x0 + u * ( x1 - x0 );
+					ys[ k ] = y0 + u * ( y1 - y0 );
+				}
+				kernel.bilinear( xs, ys, 0, n, offset );
+			}
+			else
+			{
+				for ( int k = 0; k < n; ++k )
+				{
+					final double u = k * scale;
+					kernel.nearest(
+							( int )( x0 + u * ( x1 - x0 ) + 0.5 ),
+							( int )( y0 + u * ( y1 - y0 ) + 0.5 ),
+							offset + k );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render tiles into target with the current camera.  Tiles that are
+	 * sampled for the first time are rendered on demand, their neighbors
+	 * are {@link TiledCubeMap#prefetch() prefetched} afterwards.
+	 */
+	synchronized public void map( final TiledCubeMap tiles, final ImageProcessor target )
+	{
+		camera.setTargetWidth( target.getWidth() );
+		camera.setTargetHeight( target.getHeight() );
+		visibleFaces = visibleFaces( camera, visibleRay );
+		level = tiles.selectLevel( scale( camera, tiles.getSize() ) );
+
+		tiles.nextFrame();
+		frameTiles = tiles;
+		frameLevel = level;
+		frameTarget = target;
+		tilesJob.render( target.getHeight() );
+		tiles.prefetch();
+	}
+
+	/**
+	 * Render rows [minY, maxY) of target from the tiles of level with this
+	 * thread's copy of camera.
+	 */
+	public void mapBand(
+			final RectlinearCamera camera,
+			final TiledCubeMap tiles,
+			final int level,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = this.scratch.get();
+		final RectlinearCamera c = scratch.camera;
+		c.set( camera );
+		final PixelKernel kernel = scratch.tileKernel = PixelKernel.reuse( scratch.tileKernel, tiles.getTemplate(), target );
+		final double halfSize = 0.5 * tiles.getSize( level );
+		final int tileSize = tiles.getTileSize();
+		final int maxTile = tiles.numTiles( level ) - 1;
+		final double[] r = scratch.r;
+		final double[] t = scratch.t;
+		final int tw = target.getWidth();
+
+		int face = -1, tileX = -1, tileY = -1;
+		double offsetX = 0, offsetY = 0;
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			c.ray( y, r );
+			final double x0 = r[ 0 ], dx = r[ 1 ], y0 = r[ 2 ], dy = r[ 3 ], z0 = r[ 4 ], dz = r[ 5 ];
+			for ( int x = 0; x < tw; ++x )
+			{
+				final int f = project( x0 + x * dx, y0 + x * dy, z0 + x * dz, halfSize, t );
+				final int tx = Math.min( ( int )t[ 0 ] / tileSize, maxTile );
+				final int ty = Math.min( ( int )t[ 1 ] / tileSize, maxTile );
+				if ( f != face || tx != tileX || ty != tileY )
+				{
+					face = f;
+					tileX = tx;
+					tileY = ty;
+					offsetX = tx * tileSize;
+					offsetY = ty * tileSize;
+					kernel.setSource( tiles.getTile( level, f, tx, ty ).getProcessor() );
+				}
+				final double u = t[ 0 ] - offsetX;
+				final double v = t[ 1 ] - offsetY;
+				if ( interpolate )
+					kernel.bilinear( u, v, row + x );
+				else
+					kernel.nearest( ( int )( u + 0.5 ), ( int )( v + 0.5 ), row + x );
+			}
+		}
+	}
+
+	/**
+	 * Face hit by ray (x, y, z).  Its pixel coordinates, clamped to
+	 * [0, 2 * halfSize], are stored in t.
+	 */
+	final static private int project(
+			final double x,
+			final double y,
+			final double z,
+			final double halfSize,
+			final double[] t )
+	{
+		final double ax = Math.abs( x );
+		final double ay = Math.abs( y );
+		final double az = Math.abs( z );
+		final int f;
+		final double u, v, w;
+		if ( az >= ax && az >= ay )
+		{
+			if ( z > 0 ) { f = CubeMap.FRONT; u = x; v = y; w = az; }
+			else { f = CubeMap.BACK; u = -x; v = y; w = az; }
+		}
+		else if ( ax >= ay )
+		{
+			if ( x > 0 ) { f = CubeMap.RIGHT; u = -z; v = y; w = ax; }
+			else { f = CubeMap.LEFT; u = z; v = y; w = ax; }
+		}
+		else
+		{
+			if ( y < 0 ) { f = CubeMap.TOP; u = x; v = z; w = ay; }
+			else { f = CubeMap.BOTTOM; u = x; v = -z; w = ay; }
+		}
+
+		final double s = halfSize / w;
+		final double size = halfSize + halfSize;
+		t[ 0 ] = Math.max( 0, Math.min( size, u * s + halfSize ) );
+		t[ 1 ] = Math.max( 0, Math.min( size, v * s + halfSize ) );
+		return f;
+	}
+
+	/**
+	 * Pick the face hit by ray (x, y, z) and sample it into target pixel i.
+	 */
+	final private void sample(
+			final CubeMap cubeMap,
+			final Scratch scratch,
+			final ImageProcessor target,
+			final double x,
+			final double y,
+			final double z,
+			final double halfSize,
+			final int i )
+	{
+		final double[] t = scratch.t;
+		final int f = project( x, y, z, halfSize, t );
+		final PixelKernel kernel = kernel( cubeMap, scratch, target, f );
+
+		if ( interpolate )
+			kernel.bilinear( t[ 0 ], t[ 1 ], i );
+		else
+			kernel.nearest( ( int )( t[ 0 ] + 0.5 ), ( int )( t[ 1 ] + 0.5 ), i );
+	}
+
+	/**
+	 * The kernel of face f, bound to it and target if it was not yet bound
+	 * in the current band.
+	 */
+	final static private PixelKernel kernel(
+			final CubeMap cubeMap,
+			final Scratch scratch,
+			final ImageProcessor target,
+			final int f )
+	{
+		if ( ( scratch.bound & ( 1 << f ) ) == 0 )
+		{
+			scratch.kernels[ f ] = PixelKernel.reuse( scratch.kernels[ f ], cubeMap.getFace( f ), target );
+			scratch.bound |= 1 << f;
+		}
+		return scratch.kernels[ f ];
+	}
+}
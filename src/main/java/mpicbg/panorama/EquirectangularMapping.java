@@ -0,0 +1,722 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+import mpicbg.ij.InverseTransformMapping;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * An {@link InverseTransformMapping} for {@link EquirectangularProjection
+ * equirectangular projections} that can be rendered in independent row
+ * bands.  Target pixels that map outside of the source are cleared, such
+ * that targets need not be reset between frames.  Kernels and coordinate
+ * arrays are kept per thread.  Sources are either in-heap processors or
+ * {@link TiledSource tiled sources} that are read on demand.  In-heap
+ * sources of projections that {@link EquirectangularProjection#isWrap()
+ * wrap} or {@link EquirectangularProjection#isExtendBottom() extend to the
+ * pole} are sampled across the seam and the last row directly, they need
+ * not be extended.  With a {@link #setTolerance(double) tolerance}, in-heap
+ * sources are mapped through an adaptive mesh that evaluates the
+ * projection at its vertices only.
+ *
+ * @author Stephan Saalfeld
+ */
+public class EquirectangularMapping extends InverseTransformMapping< EquirectangularProjection > implements BandMapping< EquirectangularProjection >
+{
+	/* target pixels per block of the block-wise interpolation */
+	final static private int blockSize = 64;
+
+	final static private class Scratch
+	{
+		private PixelKernel kernel;
+		final private double[] t = new double[ 2 ];
+
+		/* source coordinates of a block */
+		final private double[] xs = new double[ blockSize ];
+		final private double[] ys = new double[ blockSize ];
+		final private double[] zs = new double[ blockSize ];
+
+		/* a single vertex of the mesh */
+		final private double[] vx = new double[ 1 ];
+		final private double[] vy = new double[ 1 ];
+		final private double[] vz = new double[ 1 ];
+
+		/* the current mesh, see #mapMesh */
+		private EquirectangularProjection transform;
+		private boolean interpolate;
+		private int offsetX;
+		private int offsetY;
+		private int width;
+		private int maxY;
+		private int w;
+		private int h;
+		private int sw;
+		private int sh;
+		private double seam;
+	}
+
+	final private ThreadLocal< Scratch > scratch = new ThreadLocal< Scratch >()
+	{
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
+	protected boolean blocks = true;
+	final public boolean isBlocks(){ return blocks; }
+	final public void setBlocks( final boolean blocks ){ this.blocks = blocks; }
+
+	/* maximal source coordinate error in px of the adaptive mesh, exact if 0 */
+	protected double tolerance = 0;
+	final public double getTolerance(){ return tolerance; }
+	final public void setTolerance( final double tolerance ){ this.tolerance = tolerance; }
+
+	/* target pixels per side of the initial mesh cells, a power of 2 */
+	final static private int meshSize = 32;
+
+	public EquirectangularMapping( final EquirectangularProjection t )
+	{
+		super( t );
+	}
+
+	/**
+	 * This thread's scratch with the kernel bound to source and target.
+	 */
+	final private Scratch scratch( final ImageProcessor source, final ImageProcessor target )
+	{
+		final Scratch s = scratch.get();
+		s.kernel = PixelKernel.reuse( s.kernel, source, target );
+		return s;
+	}
+
+	/**
+	 * This thread's scratch with the kernel bound to source and target and
+	 * source extended as required by transform.
+	 */
+	final private Scratch scratch(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		final Scratch s = scratch( source, target );
+		s.kernel.extend( transform.isWrap(), transform.isExtendBottom() );
+		return s;
+	}
+
+	@Override
+	public void map(
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		mapBand( transform, source, target, 0, target.getHeight() );
+	}
+
+	@Override
+	public void mapInterpolated(
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		mapInterpolatedBand( transform, source, target, 0, target.getHeight() );
+	}
+
+	@Override
+	public void mapBand(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		if ( tolerance > 0 )
+		{
+			mapMesh( transform, source, target, 0, 0, minY, maxY, false );
+			return;
+		}
+		if ( blocks )
+		{
+			mapBlocks( transform, source, target, minY, maxY );
+			return;
+		}
+
+		final Scratch scratch = scratch( source, target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
+		final int w = source.getWidth();
+		final int h = source.getHeight();
+		final int sw = transform.isWrap() ? w : w - 1;
+		final int sh = transform.isExtendBottom() ? h : h - 1;
+		final int tw = target.getWidth();
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int x = 0; x < tw; ++x )
+			{
+				t[ 0 ] = x;
+				t[ 1 ] = y;
+				try
+				{
+					transform.applyInverseInPlace( t );
+					final int tx = ( int )( t[ 0 ] + 0.5f );
+					final int ty = ( int )( t[ 1 ] + 0.5f );
+					if (
+							tx >= 0 &&
+							tx <= sw &&
+							ty >= 0 &&
+							ty <= sh )
+						kernel.nearest( tx < w ? tx : 0, ty < h ? ty : h - 1, row + x );
+					else
+						kernel.clear( row + x );
+				}
+				catch ( final NoninvertibleModelException e )
+				{
+					kernel.clear( row + x );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Nearest neighbor mapping in blocks of {@link #blockSize} target
+	 * pixels, see {@link #mapInterpolatedBlocks(EquirectangularProjection,
+	 * ImageProcessor, ImageProcessor, int, int, int, int)}.
+	 */
+	final private void mapBlocks(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = scratch( source, target );
+		final double[] xs = scratch.xs;
+		final double[] ys = scratch.ys;
+		final double[] zs = scratch.zs;
+		final PixelKernel kernel = scratch.kernel;
+		final int w = source.getWidth();
+		final int h = source.getHeight();
+		final int sw = transform.isWrap() ? w : w - 1;
+		final int sh = transform.isExtendBottom() ? h : h - 1;
+		final int tw = target.getWidth();
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int a = 0; a < tw; a += blockSize )
+			{
+				final int n = Math.min( blockSize, tw - a );
+				transform.applyInverseBlock( a, y, n, xs, ys, zs );
+				for ( int k = 0; k < n; ++k )
+				{
+					final int tx = ( int )( xs[ k ] + 0.5f );
+					final int ty = ( int )( ys[ k ] + 0.5f );
+					/* NaN rays outside of the output projection */
+					if (
+							xs[ k ] == xs[ k ] &&
+							ys[ k ] == ys[ k ] &&
+							tx >= 0 &&
+							tx <= sw &&
+							ty >= 0 &&
+							ty <= sh )
+						kernel.nearest( tx < w ? tx : 0, ty < h ? ty : h - 1, row + a + k );
+					else
+						kernel.clear( row + a + k );
+				}
+			}
+		}
+	}
+
+	@Override
+	public void mapInterpolatedBand(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		mapInterpolated( transform, source, target, 0, 0, minY, maxY );
+	}
+
+	/**
+	 * Map target as the tile at (offsetX, offsetY) of the target plane of
+	 * transform using bilinear interpolation.
+	 */
+	public void mapInterpolatedTile(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY )
+	{
+		mapInterpolated( transform, source, target, offsetX, offsetY, 0, target.getHeight() );
+	}
+
+	final private void mapInterpolated(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY,
+			final int minY,
+			final int maxY )
+	{
+		if ( tolerance > 0 )
+		{
+			mapMesh( transform, source, target, offsetX, offsetY, minY, maxY, true );
+			return;
+		}
+		if ( blocks )
+		{
+			mapInterpolatedBlocks( transform, source, target, offsetX, offsetY, minY, maxY );
+			return;
+		}
+
+		final Scratch scratch = scratch( transform, source, target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
+		final int sw = transform.isWrap() ? source.getWidth() : source.getWidth() - 1;
+		final int sh = transform.isExtendBottom() ? source.getHeight() : source.getHeight() - 1;
+		final int tw = target.getWidth();
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int x = 0; x < tw; ++x )
+			{
+				t[ 0 ] = x + offsetX;
+				t[ 1 ] = y + offsetY;
+				try
+				{
+					transform.applyInverseInPlace( t );
+					final double tx = t[ 0 ];
+					final double ty = t[ 1 ];
+					if (
+							tx >= 0 &&
+							tx <= sw &&
+							ty >= 0 &&
+							ty <= sh )
+						kernel.bilinear( tx, ty, row + x );
+					else
+						kernel.clear( row + x );
+				}
+				catch ( final NoninvertibleModelException e )
+				{
+					kernel.clear( row + x );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bilinear mapping in blocks of {@link #blockSize} target pixels.  The
+	 * source coordinates of a block are calculated in separate passes by
+	 * {@link EquirectangularProjection#applyInverseBlock(double, double,
+	 * int, double[], double[], double[])}, runs of pixels inside the source
+	 * are interpolated by a single kernel call.
+	 */
+	final private void mapInterpolatedBlocks(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = scratch( transform, source, target );
+		final double[] xs = scratch.xs;
+		final double[] ys = scratch.ys;
+		final double[] zs = scratch.zs;
+		final PixelKernel kernel = scratch.kernel;
+		final int sw = transform.isWrap() ? source.getWidth() : source.getWidth() - 1;
+		final int sh = transform.isExtendBottom() ? source.getHeight() : source.getHeight() - 1;
+		final int tw = target.getWidth();
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int a = 0; a < tw; a += blockSize )
+			{
+				final int n = Math.min( blockSize, tw - a );
+				transform.applyInverseBlock( a + offsetX, y + offsetY, n, xs, ys, zs );
+				for ( int k = 0; k < n; )
+				{
+					final int from = k;
+					while (
+							k < n &&
+							xs[ k ] >= 0 &&
+							xs[ k ] <= sw &&
+							ys[ k ] >= 0 &&
+							ys[ k ] <= sh )
+						++k;
+					if ( k > from )
+						kernel.bilinear( xs, ys, from, k, row + a );
+					if ( k < n )
+						kernel.clear( row + a + k++ );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Map rows [minY, maxY) of target through an adaptive mesh.  The
+	 * projection is evaluated at the corners of cells of {@link #meshSize}
+	 * target pixels only, and at the midpoints of their edges and centers.
+	 * Cells whose midpoints deviate more than {@link #tolerance} from the
+	 * bilinear interpolation of the corners, that cross the seam of the
+	 * source or that leave the output projection are split, cells entirely
+	 * outside of it are cleared, all others interpolate source coordinates
+	 * bilinearly.  Cells of a single pixel are exact.
+	 */
+	final private void mapMesh(
+			final EquirectangularProjection transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY,
+			final int minY,
+			final int maxY,
+			final boolean interpolate )
+	{
+		final Scratch s = scratch( transform, source, target );
+		s.transform = transform;
+		s.interpolate = interpolate;
+		s.offsetX = offsetX;
+		s.offsetY = offsetY;
+		s.width = target.getWidth();
+		s.maxY = maxY;
+		s.w = source.getWidth();
+		s.h = source.getHeight();
+		s.sw = transform.isWrap() ? s.w : s.w - 1;
+		s.sh = transform.isExtendBottom() ? s.h : s.h - 1;
+		/* corners farther apart than half the circle are on both sides of the seam */
+		s.seam = transform.getLambdaPiScale();
+		try
+		{
+			for ( int y = minY; y < maxY; y += meshSize )
+			{
+				for ( int x = 0; x < s.width; x += meshSize )
+				{
+					vertex( s, x, y );
+					final double ax = s.vx[ 0 ];
+					final double ay = s.vy[ 0 ];
+					vertex( s, x + meshSize, y );
+					final double bx = s.vx[ 0 ];
+					final double by = s.vy[ 0 ];
+					vertex( s, x, y + meshSize );
+					final double cx = s.vx[ 0 ];
+					final double cy = s.vy[ 0 ];
+					vertex( s, x + meshSize, y + meshSize );
+					cell( s, x, y, meshSize, ax, ay, bx, by, cx, cy, s.vx[ 0 ], s.vy[ 0 ] );
+				}
+			}
+		}
+		finally
+		{
+			s.transform = null;
+		}
+	}
+
+	/**
+	 * Source coordinates of target pixel (x, y) into (s.vx[0], s.vy[0]),
+	 * NaN outside of the output projection.
+	 */
+	final static private void vertex( final Scratch s, final int x, final int y )
+	{
+		s.transform.applyInverseBlock( x + s.offsetX, y + s.offsetY, 1, s.vx, s.vy, s.vz );
+	}
+
+	/**
+	 * Render the cell of size<sup>2</sup> pixels at (x, y) with source
+	 * coordinates a at (x, y), b at (x + size, y), c at (x, y + size) and d
+	 * at (x + size, y + size), or split it.
+	 */
+	final private void cell(
+			final Scratch s,
+			final int x,
+			final int y,
+			final int size,
+			final double ax,
+			final double ay,
+			final double bx,
+			final double by,
+			final double cx,
+			final double cy,
+			final double dx,
+			final double dy )
+	{
+		if ( x >= s.width || y >= s.maxY )
+			return;
+
+		final double[] xs = s.xs;
+		final double[] ys = s.ys;
+		final int row = s.width * y + x;
+
+		if ( size == 1 )
+		{
+			xs[ 0 ] = ax;
+			ys[ 0 ] = ay;
+			draw( s, 1, row );
+			return;
+		}
+
+		final int half = size / 2;
+		vertex( s, x + half, y );
+		final double topX = s.vx[ 0 ];
+		final double topY = s.vy[ 0 ];
+		vertex( s, x, y + half );
+		final double leftX = s.vx[ 0 ];
+		final double leftY = s.vy[ 0 ];
+		vertex( s, x + half, y + half );
+		final double centerX = s.vx[ 0 ];
+		final double centerY = s.vy[ 0 ];
+		vertex( s, x + size, y + half );
+		final double rightX = s.vx[ 0 ];
+		final double rightY = s.vy[ 0 ];
+		vertex( s, x + half, y + size );
+		final double bottomX = s.vx[ 0 ];
+		final double bottomY = s.vy[ 0 ];
+
+		final double spread =
+				Math.max( Math.max( ax, bx ), Math.max( cx, dx ) ) -
+				Math.min( Math.min( ax, bx ), Math.min( cx, dx ) );
+		final double error = Math.max(
+				Math.max(
+						Math.max( Math.abs( topX - 0.5 * ( ax + bx ) ), Math.abs( topY - 0.5 * ( ay + by ) ) ),
+						Math.max( Math.abs( leftX - 0.5 * ( ax + cx ) ), Math.abs( leftY - 0.5 * ( ay + cy ) ) ) ),
+				Math.max(
+						Math.max(
+								Math.max( Math.abs( rightX - 0.5 * ( bx + dx ) ), Math.abs( rightY - 0.5 * ( by + dy ) ) ),
+								Math.max( Math.abs( bottomX - 0.5 * ( cx + dx ) ), Math.abs( bottomY - 0.5 * ( cy + dy ) ) ) ),
+						Math.max( Math.abs( centerX - 0.25 * ( ax + bx + cx + dx ) ), Math.abs( centerY - 0.25 * ( ay + by + cy + dy ) ) ) ) );
+
+		final int n = Math.min( size, s.width - x );
+		final int m = Math.min( size, s.maxY - y );
+
+		/* entirely outside of the output projection */
+		if (
+				ax != ax && bx != bx && cx != cx && dx != dx &&
+				topX != topX && leftX != leftX && centerX != centerX && rightX != rightX && bottomX != bottomX )
+		{
+			for ( int j = 0; j < m; ++j )
+				for ( int k = 0; k < n; ++k )
+					s.kernel.clear( row + s.width * j + k );
+			return;
+		}
+
+		/* NaN splits */
+		if ( !( spread < s.seam && error <= tolerance ) )
+		{
+			cell( s, x, y, half, ax, ay, topX, topY, leftX, leftY, centerX, centerY );
+			cell( s, x + half, y, half, topX, topY, bx, by, centerX, centerY, rightX, rightY );
+			cell( s, x, y + half, half, leftX, leftY, centerX, centerY, cx, cy, bottomX, bottomY );
+			cell( s, x + half, y + half, half, centerX, centerY, rightX, rightY, bottomX, bottomY, dx, dy );
+			return;
+		}
+
+		final double scale = 1.0 / size;
+		for ( int j = 0; j < m; ++j )
+		{
+			final double v = j * scale;
+			final double x0 = ax + v * ( cx - ax );
+			final double y0 = ay + v * ( cy - ay );
+			final double x1 = bx + v * ( dx - bx );
+			final double y1 = by + v * ( dy - by );
+			for ( int k = 0; k < n; ++k )
+			{
+				final double u = k * scale;
+				xs[ k ] = x0 + u * ( x1 - x0 );
+				ys[ k ] = y0 + u * ( y1 - y0 );
+			}
+			draw( s, n, row + s.width * j );
+		}
+	}
+
+	/**
+	 * Render the n source coordinates of the scratch into target pixels
+	 * offset, offset + 1, &hellip;
+	 */
+	final static private void draw( final Scratch s, final int n, final int offset )
+	{
+		final double[] xs = s.xs;
+		final double[] ys = s.ys;
+		final PixelKernel kernel = s.kernel;
+		if ( s.interpolate )
+		{
+			for ( int k = 0; k < n; )
+			{
+				final int from = k;
+				while (
+						k < n &&
+						xs[ k ] >= 0 &&
+						xs[ k ] <= s.sw &&
+						ys[ k ] >= 0 &&
+						ys[ k ] <= s.sh )
+					++k;
+				if ( k > from )
+					kernel.bilinear( xs, ys, from, k, offset );
+				if ( k < n )
+					kernel.clear( offset + k++ );
+			}
+		}
+		else
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final int tx = ( int )( xs[ k ] + 0.5f );
+				final int ty = ( int )( ys[ k ] + 0.5f );
+				if (
+						xs[ k ] == xs[ k ] &&
+						ys[ k ] == ys[ k ] &&
+						tx >= 0 &&
+						tx <= s.sw &&
+						ty >= 0 &&
+						ty <= s.sh )
+					kernel.nearest( tx < s.w ? tx : 0, ty < s.h ? ty : s.h - 1, offset + k );
+				else
+					kernel.clear( offset + k );
+			}
+		}
+	}
+
+	/**
+	 * Map rows [minY, maxY) of target from a tiled source using nearest
+	 * neighbor sampling.
+	 */
+	public void mapBand(
+			final EquirectangularProjection transform,
+			final TiledSource source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = scratch( source.getTemplate(), target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
+		final int sw = source.getWidth() - 1;
+		final int sh = source.getHeight() - 1;
+		final int tileSize = source.getTileSize();
+		final int tw = target.getWidth();
+		int tileX = -1;
+		int tileY = -1;
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int x = 0; x < tw; ++x )
+			{
+				t[ 0 ] = x;
+				t[ 1 ] = y;
+				try
+				{
+					transform.applyInverseInPlace( t );
+					final int tx = ( int )( t[ 0 ] + 0.5f );
+					final int ty = ( int )( t[ 1 ] + 0.5f );
+					if (
+							tx >= 0 &&
+							tx <= sw &&
+							ty >= 0 &&
+							ty <= sh )
+					{
+						final int cx = source.tileX( tx );
+						final int cy = source.tileY( ty );
+						if ( cx != tileX || cy != tileY )
+						{
+							kernel.setSource( source.getTile( cx, cy ).getProcessor() );
+							tileX = cx;
+							tileY = cy;
+						}
+						kernel.nearest( tx - cx * tileSize, ty - cy * tileSize, row + x );
+					}
+					else
+						kernel.clear( row + x );
+				}
+				catch ( final NoninvertibleModelException e )
+				{
+					kernel.clear( row + x );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Map rows [minY, maxY) of target from a tiled source using bilinear
+	 * interpolation.
+	 */
+	public void mapInterpolatedBand(
+			final EquirectangularProjection transform,
+			final TiledSource source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		mapInterpolated( transform, source, target, 0, 0, minY, maxY );
+	}
+
+	/**
+	 * Map target as the tile at (offsetX, offsetY) of the target plane of
+	 * transform from a tiled source using bilinear interpolation.
+	 */
+	public void mapInterpolatedTile(
+			final EquirectangularProjection transform,
+			final TiledSource source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY )
+	{
+		mapInterpolated( transform, source, target, offsetX, offsetY, 0, target.getHeight() );
+	}
+
+	final private void mapInterpolated(
+			final EquirectangularProjection transform,
+			final TiledSource source,
+			final ImageProcessor target,
+			final int offsetX,
+			final int offsetY,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = scratch( source.getTemplate(), target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
+		final int sw = source.getWidth() - 1;
+		final int sh = source.getHeight() - 1;
+		final int tileSize = source.getTileSize();
+		final int tw = target.getWidth();
+		int tileX = -1;
+		int tileY = -1;
+		for ( int y = minY; y < maxY; ++y )
+		{
+			final int row = tw * y;
+			for ( int x = 0; x < tw; ++x )
+			{
+				t[ 0 ] = x + offsetX;
+				t[ 1 ] = y + offsetY;
+				try
+				{
+					transform.applyInverseInPlace( t );
+					final double tx = t[ 0 ];
+					final double ty = t[ 1 ];
+					if (
+							tx >= 0 &&
+							tx <= sw &&
+							ty >= 0 &&
+							ty <= sh )
+					{
+						final int cx = source.tileX( ( int )tx );
+						final int cy = source.tileY( ( int )ty );
+						if ( cx != tileX || cy != tileY )
+						{
+							kernel.setSource( source.getTile( cx, cy ).getProcessor() );
+							tileX = cx;
+							tileY = cy;
+						}
+						kernel.bilinear( tx - cx * tileSize, ty - cy * tileSize, row + x );
+					}
+					else
+						kernel.clear( row + x );
+				}
+				catch ( final NoninvertibleModelException e )
+				{
+					kernel.clear( row + x );
+				}
+			}
+		}
+	}
+}
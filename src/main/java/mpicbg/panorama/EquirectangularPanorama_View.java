@@ -1,8 +1,8 @@
 package mpicbg.panorama;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.process.ImageProcessor;
-import mpicbg.ij.InverseTransformMapping;
 import mpicbg.ij.Mapping;
 
 public class EquirectangularPanorama_View extends AbstractPanorama_View
@@ -10,41 +10,87 @@ public class EquirectangularPanorama_View extends AbstractPanorama_View
 	final private class MappingThread extends AbstractMappingThread
 	{
 		final protected ImageProcessor source;
+		final protected TiledSource tiledSource;
 		final protected Mapping< EquirectangularProjection > eqiMapping;
 		final protected EquirectangularProjection projection;
 		private boolean interpolate = true;
 
+		/* per thread transforms and rows of the current frame from tiledSource */
+		final private ThreadLocal< EquirectangularProjection > transforms = new ThreadLocal< EquirectangularProjection >()
+		{
+			@Override
+			protected EquirectangularProjection initialValue()
+			{
+				return projection.clone();
+			}
+		};
+		final private RowBands.Job tiledJob;
+		private ImageProcessor frameTarget;
+		private boolean frameInterpolated;
+
 		public MappingThread(
 				final ImagePlus impSource,
 				final ImagePlus impTarget,
 				final ImageProcessor source,
+				final TiledSource tiledSource,
 				final ImageProcessor target,
 				final Mapping< EquirectangularProjection > mapping,
 				final EquirectangularProjection p )
 		{
 			super( impSource, impTarget, target );
 			this.source = source;
+			this.tiledSource = tiledSource;
 			this.eqiMapping = mapping;
 			this.projection = p;
 			this.setName( "MappingThread" );
+
+			tiledJob = new RowBands.Job(
+					new RowBands.Band()
+					{
+						@Override
+						final public void render( final int minY, final int maxY )
+						{
+							final EquirectangularProjection t = transforms.get();
+							t.set( eqiMapping.getTransform() );
+							if ( frameInterpolated )
+								tiledMapping.mapInterpolatedBand( t, MappingThread.this.tiledSource, frameTarget, minY, maxY );
+							else
+								tiledMapping.mapBand( t, MappingThread.this.tiledSource, frameTarget, minY, maxY );
+						}
+					} );
 		}
 
 		@Override
-		final public void map()
+		final protected void map( final ImageProcessor target, final boolean preview )
 		{
-			lambda += dt * dLambda;
-			phi += dt * dPhi;
-
 			projection.setOrientation( lambda, phi, rho );
 
-			eqiMapping.getTransform().set( projection );
-			temp.reset();
-			if ( interpolate )
-				eqiMapping.mapInterpolated( source, temp );
+			final EquirectangularProjection t = eqiMapping.getTransform();
+			t.set( projection );
+			t.setTargetWidth( target.getWidth() );
+			t.setTargetHeight( target.getHeight() );
+			if ( tiledSource != null )
+			{
+				frameTarget = target;
+				frameInterpolated = interpolate && !preview;
+				tiledJob.render( target.getHeight() );
+			}
 			else
-				eqiMapping.map( source, temp );
+			{
+				/* frames mostly differ in orientation, rotate cached rays */
+				t.updateRays();
+				final StackPlayer< ImageProcessor > player = stackPlayer;
+				final ImageProcessor source = player == null ? this.source : player.getCurrent();
+				if ( interpolate && !preview )
+					eqiMapping.mapInterpolated( source, target );
+				else
+					eqiMapping.map( source, target );
+			}
 		}
 
+		@Override
+		final protected boolean isInterpolate(){ return interpolate; }
+
 		@Override
 		final public void toggleInterpolation()
 		{
@@ -52,7 +98,17 @@ public class EquirectangularPanorama_View extends AbstractPanorama_View
 		}
 	}
 
-	final private Mapping< EquirectangularProjection > mapping = new InverseTransformMapping< EquirectangularProjection >( p.clone() );
+	final private EquirectangularMapping tiledMapping = new EquirectangularMapping( p.clone() );
+	final private EquirectangularMapping bandMapping = new EquirectangularMapping( p.clone() );
+	final private Mapping< EquirectangularProjection > mapping = new ParallelMapping< EquirectangularProjection >(
+			bandMapping,
+			p.clone() );
+
+	static private boolean fastMath = false;
+	static private double meshTolerance = 0;
+
+	private volatile StackPlayer< ImageProcessor > stackPlayer;
+	static private OutputProjection output = OutputProjection.RECTILINEAR;
 
 	@Override
 	protected boolean setup( final ImagePlus imp )
@@ -69,6 +125,16 @@ public class EquirectangularPanorama_View extends AbstractPanorama_View
 		gd.addNumericField( "width : ", width, 0 );
 		gd.addNumericField( "height : ", height, 0 );
 
+		gd.addMessage( "Miscellaneous" );
+		gd.addCheckbox( "fast math", fastMath );
+		gd.addNumericField( "mesh tolerance (px, 0 exact) : ", meshTolerance, 2 );
+		final OutputProjection[] outputs = OutputProjection.values();
+		final String[] outputNames = new String[ outputs.length ];
+		for ( int k = 0; k < outputs.length; ++k )
+			outputNames[ k ] = outputs[ k ].name().toLowerCase();
+		gd.addChoice( "output projection : ", outputNames, output.name().toLowerCase() );
+		addPlaybackFields( gd, imp );
+
 		gd.showDialog();
 
 		if ( gd.wasCanceled() ) return false;
@@ -86,6 +152,11 @@ public class EquirectangularPanorama_View extends AbstractPanorama_View
 		width = ( int )gd.getNextNumber();
 		height = ( int )gd.getNextNumber();
 
+		fastMath = gd.getNextBoolean();
+		meshTolerance = Math.max( 0, gd.getNextNumber() );
+		output = outputs[ gd.getNextChoiceIndex() ];
+		readPlaybackFields( gd, imp );
+
 		return true;
 	}
 
@@ -94,11 +165,48 @@ public class EquirectangularPanorama_View extends AbstractPanorama_View
 	@Override
 	protected AbstractMappingThread createPainter( final ImagePlus impViewer )
 	{
-		/* prepare extended image */
-		ipSource = ip.createProcessor(
-				hfov == 2.0 * Math.PI ? imp.getWidth() + 1 : imp.getWidth(),
-				vfov == Math.PI ? imp.getHeight() + 1 : imp.getHeight() );
-		prepareExtendedImage( imp.getProcessor(), ipSource );
-		return new MappingThread( imp, impViewer, ipSource, ip, mapping, p );
+		if ( mappedImage != null )
+			tiledSource = createTiledSource( hfov, vfov );
+		else
+			ipSource = imp.getProcessor();
+		p.setFastMath( fastMath );
+		p.setOutput( output );
+		bandMapping.setTolerance( meshTolerance );
+		return new MappingThread( imp, impViewer, ipSource, tiledSource, ip, mapping, p );
+	}
+
+	/**
+	 * Slices of in-heap stacks are sampled in place, preparing them means
+	 * reading them.
+	 */
+	@Override
+	protected StackPlayer< ImageProcessor > createPlayer()
+	{
+		if ( ipSource == null || imp.getStackSize() < 2 )
+			return null;
+		stackPlayer = new StackPlayer< ImageProcessor >(
+				imp.getStack(),
+				imp.getCurrentSlice(),
+				ipSource,
+				lookAhead,
+				new StackPlayer.Loader< ImageProcessor >()
+				{
+					@Override
+					final public ImageProcessor load( final ImageProcessor slice, final ImageProcessor recycled )
+					{
+						return slice;
+					}
+				} );
+		return stackPlayer;
+	}
+
+	@Override
+	protected boolean nextOutput()
+	{
+		final OutputProjection[] outputs = OutputProjection.values();
+		output = outputs[ ( p.getOutput().ordinal() + 1 ) % outputs.length ];
+		p.setOutput( output );
+		IJ.showStatus( "output projection: " + output.name().toLowerCase() );
+		return true;
 	}
 }
@@ -29,6 +29,64 @@ public class EquirectangularProjection extends PanoramaCamera< EquirectangularPr
 	final public double getMinPhi(){ return minPhi; }
 	final public void setMinPhi( final double minPhi ){ this.minPhi = minPhi; }
 
+	/* the source wraps horizontally, 360&deg; panoramas */
+	private boolean wrap = false;
+	final public boolean isWrap(){ return wrap; }
+	final public void setWrap( final boolean wrap ){ this.wrap = wrap; }
+
+	/* the last row of the source is the pole, 180&deg; panoramas */
+	private boolean extendBottom = false;
+	final public boolean isExtendBottom(){ return extendBottom; }
+	final public void setExtendBottom( final boolean extendBottom ){ this.extendBottom = extendBottom; }
+
+	/* approximate trigonometry, see #getFastMathError() */
+	private boolean fastMath = false;
+	final public boolean isFastMath(){ return fastMath; }
+	final public void setFastMath( final boolean fastMath ){ this.fastMath = fastMath; }
+
+	/* projection of the viewing sphere onto the target */
+	private OutputProjection output = OutputProjection.RECTILINEAR;
+	final public OutputProjection getOutput(){ return output; }
+	final public void setOutput( final OutputProjection output ){ this.output = output; }
+
+	/* cached rays of the target, see #updateRays() */
+	private RayTable rays = null;
+
+	/* ray of a single target pixel */
+	final private double[] ray = new double[ 3 ];
+
+	/**
+	 * Use the cached {@link RayTable rays} for target size, focal length and
+	 * output projection in {@link #applyInverseBlock(double, double, int,
+	 * double[], double[], double[])}, building them if necessary and the
+	 * focal length is not changing, see {@link RayTable#get(double, double,
+	 * double, OutputProjection)}.  Without rays, they are calculated for
+	 * each pixel.  Rays are copied by
+	 * {@link #set(EquirectangularProjection)}, and ignored once any of their
+	 * parameters changed until they are updated again.
+	 *
+	 * Rectilinear rays are not cached because calculating them is not
+	 * slower than loading them.
+	 */
+	final public void updateRays()
+	{
+		if ( output == OutputProjection.RECTILINEAR )
+			rays = null;
+		else if ( rays == null || !rays.matches( targetWidth, targetHeight, f, output ) )
+			rays = RayTable.get( targetWidth, targetHeight, f, output );
+	}
+
+	/**
+	 * Maximal deviation of the {@link #setFastMath(boolean) fast math}
+	 * projection from the exact projection in source pixels.  This is
+	 * {@link Util#ATAN2_ERROR} scaled by the source pixels per radian, i.e.
+	 * below 0.001px for up to 50,000 source pixels per radian.
+	 */
+	final public double getFastMathError()
+	{
+		return Util.ATAN2_ERROR * Math.max( lambdaPiScale, phiPiScale ) / Math.PI;
+	}
+
 	@Override
 	final public double[] apply( final double[] point )
 	{
@@ -68,11 +126,34 @@ public class EquirectangularProjection extends PanoramaCamera< EquirectangularPr
 		final double y = ( point[ 1 ] - 0.5 * targetHeight ) / targetMaxSize;
 
 		/* calculate sphere cut */
-		final double t = 1.0 / Math.sqrt( x * x + y * y + f * f );
-
-		final double tx = t * x;
-		final double ty = t * y;
-		final double tz = t * f;
+		final double tx;
+		final double ty;
+		final double tz;
+		if ( output == OutputProjection.RECTILINEAR )
+		{
+			if ( fastMath )
+			{
+				applyInverseFast( x, y, f, point );
+				return;
+			}
+			final double t = 1.0 / Math.sqrt( x * x + y * y + f * f );
+			tx = t * x;
+			ty = t * y;
+			tz = t * f;
+		}
+		else
+		{
+			if ( !output.ray( x, y, f, ray ) )
+				throw new NoninvertibleModelException( "Outside of the " + output + " projection." );
+			if ( fastMath )
+			{
+				applyInverseFast( ray[ 0 ], ray[ 1 ], ray[ 2 ], point );
+				return;
+			}
+			tx = ray[ 0 ];
+			ty = ray[ 1 ];
+			tz = ray[ 2 ];
+		}
 
 		/* rotate */
 		final double rx = i.m00 * tx + i.m01 * ty  + i.m02 * tz;
@@ -93,6 +174,167 @@ public class EquirectangularProjection extends PanoramaCamera< EquirectangularPr
 		point[ 1 ] = point[ 1 ] * phiPiScale;
 	}
 
+	/**
+	 * Approximate {@link #applyInverseInPlace(double[])}.  Both angles are
+	 * calculated with {@link Util#atan2(double, double)} which is invariant
+	 * to the length of the ray (x, y, z), such that the ray does not need
+	 * to be normalized and the remaining square root is a single
+	 * instruction.
+	 */
+	final private void applyInverseFast( final double x, final double y, final double z, final double[] point )
+	{
+		/* rotate */
+		final double rx = i.m00 * x + i.m01 * y  + i.m02 * z;
+		final double ry = i.m10 * x + i.m11 * y  + i.m12 * z;
+		final double rz = i.m20 * x + i.m21 * y  + i.m22 * z;
+
+		/* calculate phi and lambda, -3 <= tLambda <= 1 */
+		double tLambda = ( Util.atan2( rx, rz ) - minLambda ) / Math.PI;
+		if ( tLambda < 0 )
+		{
+			tLambda += 2;
+			if ( tLambda < 0 )
+				tLambda += 2;
+		}
+
+		point[ 0 ] = tLambda * lambdaPiScale;
+		point[ 1 ] = ( ( Util.atan2( ry, Math.sqrt( rx * rx + rz * rz ) ) - minPhi ) / Math.PI + 0.5 ) * phiPiScale;
+	}
+
+	/**
+	 * {@link #applyInverseInPlace(double[]) Inverse project} the n target
+	 * pixels (x, y), (x + 1, y), &hellip; into (xs[k], ys[k]).  The rays
+	 * are calculated in a first pass of plain arithmetic over the block
+	 * that the JIT can vectorize, the angles in a second pass.  With
+	 * {@link #updateRays() cached rays}, the first pass only rotates them.
+	 * Without, results are identical to
+	 * {@link #applyInverseInPlace(double[])}.  Pixels outside of the
+	 * {@link #getOutput() output projection} are NaN.
+	 *
+	 * @param x
+	 * @param y
+	 * @param n
+	 * @param xs
+	 * @param ys
+	 * @param zs scratch of at least n
+	 */
+	final public void applyInverseBlock(
+			final double x,
+			final double y,
+			final int n,
+			final double[] xs,
+			final double[] ys,
+			final double[] zs )
+	{
+		final double v = ( y - 0.5 * targetHeight ) / targetMaxSize;
+		final double ox = 0.5 * targetWidth;
+
+		if (
+				rays != null &&
+				rays.matches( targetWidth, targetHeight, f, output ) &&
+				x == ( int )x &&
+				y == ( int )y &&
+				x >= 0 &&
+				y >= 0 &&
+				x + n <= rays.getWidth() &&
+				y < rays.getHeight() )
+		{
+			final float[] rxs = rays.getXs();
+			final float[] rys = rays.getYs();
+			final float[] rzs = rays.getZs();
+			final int offset = ( int )y * rays.getWidth() + ( int )x;
+			for ( int k = 0; k < n; ++k )
+			{
+				final double tx = rxs[ offset + k ];
+				final double ty = rys[ offset + k ];
+				final double tz = rzs[ offset + k ];
+				xs[ k ] = i.m00 * tx + i.m01 * ty  + i.m02 * tz;
+				/* float rays may leave the unit sphere slightly */
+				ys[ k ] = Math.max( -1.0, Math.min( 1.0, i.m10 * tx + i.m11 * ty  + i.m12 * tz ) );
+				zs[ k ] = i.m20 * tx + i.m21 * ty  + i.m22 * tz;
+			}
+		}
+		else if ( output != OutputProjection.RECTILINEAR )
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final double tx;
+				final double ty;
+				final double tz;
+				if ( output.ray( ( x + k - ox ) / targetMaxSize, v, f, ray ) )
+				{
+					tx = ray[ 0 ];
+					ty = ray[ 1 ];
+					tz = ray[ 2 ];
+				}
+				else
+					tx = ty = tz = Double.NaN;
+				xs[ k ] = i.m00 * tx + i.m01 * ty  + i.m02 * tz;
+				ys[ k ] = i.m10 * tx + i.m11 * ty  + i.m12 * tz;
+				zs[ k ] = i.m20 * tx + i.m21 * ty  + i.m22 * tz;
+			}
+		}
+		else if ( fastMath )
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final double u = ( x + k - ox ) / targetMaxSize;
+				xs[ k ] = i.m00 * u + i.m01 * v  + i.m02 * f;
+				ys[ k ] = i.m10 * u + i.m11 * v  + i.m12 * f;
+				zs[ k ] = i.m20 * u + i.m21 * v  + i.m22 * f;
+			}
+		}
+		else
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final double u = ( x + k - ox ) / targetMaxSize;
+				final double t = 1.0 / Math.sqrt( u * u + v * v + f * f );
+				final double tx = t * u;
+				final double ty = t * v;
+				final double tz = t * f;
+				xs[ k ] = i.m00 * tx + i.m01 * ty  + i.m02 * tz;
+				ys[ k ] = i.m10 * tx + i.m11 * ty  + i.m12 * tz;
+				zs[ k ] = i.m20 * tx + i.m21 * ty  + i.m22 * tz;
+			}
+		}
+
+		if ( fastMath )
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final double rx = xs[ k ];
+				final double ry = ys[ k ];
+				final double rz = zs[ k ];
+				double tLambda = ( Util.atan2( rx, rz ) - minLambda ) / Math.PI;
+				if ( tLambda < 0 )
+				{
+					tLambda += 2;
+					if ( tLambda < 0 )
+						tLambda += 2;
+				}
+				xs[ k ] = tLambda * lambdaPiScale;
+				ys[ k ] = ( ( Util.atan2( ry, Math.sqrt( rx * rx + rz * rz ) ) - minPhi ) / Math.PI + 0.5 ) * phiPiScale;
+			}
+		}
+		else
+		{
+			for ( int k = 0; k < n; ++k )
+			{
+				final double rx = xs[ k ];
+				final double rz = zs[ k ];
+				final double tLambda;
+				if ( rz < 0 )
+					tLambda = ( Math.asin( -rx / Math.sqrt( rx * rx + rz * rz ) ) + Math.PI - minLambda ) / Math.PI;
+				else
+					tLambda = ( Math.asin( rx / Math.sqrt( rx * rx + rz * rz ) ) - minLambda ) / Math.PI;
+
+				xs[ k ] = Util.mod( tLambda, 2 ) * lambdaPiScale;
+				ys[ k ] = ( ( Math.asin( ys[ k ] ) - minPhi ) / Math.PI + 0.5 ) * phiPiScale;
+			}
+		}
+	}
+
 	@Override
 	final public EquirectangularProjection clone()
 	{
@@ -112,6 +354,11 @@ public class EquirectangularProjection extends PanoramaCamera< EquirectangularPr
 		minLambda = e.minLambda;
 		minPhi = e.minPhi;
 		phiPiScale = e.phiPiScale;
+		fastMath = e.fastMath;
+		wrap = e.wrap;
+		extendBottom = e.extendBottom;
+		output = e.output;
+		rays = e.rays;
 	}
 
 	@Override
@@ -0,0 +1,265 @@
+package mpicbg.panorama;
+
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * Outline of the field of view of an {@link EquirectangularProjection} in
+ * source coordinates.  Instead of inverse projecting every border pixel of
+ * the target, each border edge is subdivided recursively only where its
+ * projection deviates from a straight line by more than a tolerance or
+ * where it wraps around the horizontal border of the source.  Segments
+ * that wrap are split like in the exhaustive outline.
+ *
+ * If a corner of the target is outside of the
+ * {@link EquirectangularProjection#getOutput() output projection}, e.g. of
+ * a fisheye, every border pixel is projected instead and the outline is
+ * interrupted where the border leaves the projection.
+ *
+ * Not thread safe, use one instance per thread.
+ *
+ * @author Stephan Saalfeld
+ */
+public class FovOutline
+{
+	/* longest segment in target pixels, catches curvature the midpoint misses */
+	final static private double maxSegment = 32;
+
+	final private double[] l = new double[ 2 ];
+
+	private GeneralPath gp;
+	private EquirectangularProjection p;
+	private int sourceWidth;
+	private double maxD;
+	private double tolerance2;
+	private int segments;
+
+	/* bounds of the outline */
+	private double minX, minY, maxX, maxY;
+
+	/* last point of the sampled outline, if not interrupted */
+	private boolean open;
+	private double lastSx;
+
+	/**
+	 * Number of segments of the last outline, 0 if the border of the target
+	 * is entirely outside of the output projection.
+	 */
+	final public int getSegments(){ return segments; }
+
+	/**
+	 * Store the bounds of the last outline in r, empty if it has no
+	 * segments.
+	 *
+	 * @return r
+	 */
+	final public Rectangle2D getBounds( final Rectangle2D r )
+	{
+		if ( minX > maxX )
+			r.setRect( 0, 0, 0, 0 );
+		else
+			r.setFrameFromDiagonal( minX, minY, maxX, maxY );
+		return r;
+	}
+
+	/**
+	 * Reset gp and fill it with the outline of the field of view of p.
+	 *
+	 * @param gp
+	 * @param sourceWidth
+	 * @param w target width
+	 * @param h target height
+	 * @param p
+	 * @param tolerance maximal deviation from the exact outline in source
+	 * 		pixels
+	 *
+	 * @return gp
+	 */
+	public GeneralPath outline(
+			@SuppressWarnings( "hiding" ) final GeneralPath gp,
+			@SuppressWarnings( "hiding" ) final int sourceWidth,
+			final int w,
+			final int h,
+			@SuppressWarnings( "hiding" ) final EquirectangularProjection p,
+			final double tolerance )
+	{
+		this.gp = gp;
+		this.p = p;
+		this.sourceWidth = sourceWidth;
+		maxD = sourceWidth / 2;
+		tolerance2 = tolerance * tolerance;
+		segments = 0;
+		minX = minY = Double.POSITIVE_INFINITY;
+		maxX = maxY = Double.NEGATIVE_INFINITY;
+
+		gp.reset();
+
+		final double x1 = w - 1;
+		final double y1 = h - 1;
+
+		try
+		{
+			project( 0, 0 );
+			final double sx00 = l[ 0 ], sy00 = l[ 1 ];
+			project( x1, 0 );
+			final double sx10 = l[ 0 ], sy10 = l[ 1 ];
+			project( x1, y1 );
+			final double sx11 = l[ 0 ], sy11 = l[ 1 ];
+			project( 0, y1 );
+			final double sx01 = l[ 0 ], sy01 = l[ 1 ];
+
+			moveTo( sx00, sy00 );
+			edge( 0, 0, sx00, sy00, x1, 0, sx10, sy10 );
+			edge( x1, 0, sx10, sy10, x1, y1, sx11, sy11 );
+			edge( x1, y1, sx11, sy11, 0, y1, sx01, sy01 );
+			edge( 0, y1, sx01, sy01, 0, 0, sx00, sy00 );
+		}
+		catch ( final NoninvertibleModelException e )
+		{
+			gp.reset();
+			segments = 0;
+			minX = minY = Double.POSITIVE_INFINITY;
+			maxX = maxY = Double.NEGATIVE_INFINITY;
+			sampleBorder( w - 1, h - 1 );
+		}
+
+		this.gp = null;
+		this.p = null;
+		return gp;
+	}
+
+	/**
+	 * Outline by projecting every border pixel of the target clockwise from
+	 * (0, 0) to (x1, y1) and back.
+	 */
+	final private void sampleBorder( final int x1, final int y1 )
+	{
+		open = false;
+		for ( int x = 0; x < x1; ++x )
+			sample( x, 0 );
+		for ( int y = 0; y < y1; ++y )
+			sample( x1, y );
+		for ( int x = x1; x > 0; --x )
+			sample( x, y1 );
+		for ( int y = y1; y >= 0; --y )
+			sample( 0, y );
+	}
+
+	/**
+	 * Append border pixel (x, y) to the sampled outline, interrupt the
+	 * outline if it is outside of the output projection.
+	 */
+	final private void sample( final double x, final double y )
+	{
+		try
+		{
+			project( x, y );
+		}
+		catch ( final NoninvertibleModelException e )
+		{
+			open = false;
+			return;
+		}
+		if ( open )
+			lineTo( lastSx, l[ 0 ], l[ 1 ] );
+		else
+			moveTo( l[ 0 ], l[ 1 ] );
+		lastSx = l[ 0 ];
+		open = true;
+	}
+
+	final private void project( final double x, final double y ) throws NoninvertibleModelException
+	{
+		l[ 0 ] = x;
+		l[ 1 ] = y;
+		p.applyInverseInPlace( l );
+	}
+
+	/**
+	 * Append the outline of target edge (ax, ay) to (bx, by) whose end
+	 * points project to (asx, asy) and (bsx, bsy).
+	 */
+	final private void edge(
+			final double ax,
+			final double ay,
+			final double asx,
+			final double asy,
+			final double bx,
+			final double by,
+			final double bsx,
+			final double bsy ) throws NoninvertibleModelException
+	{
+		final double length = Math.max( Math.abs( bx - ax ), Math.abs( by - ay ) );
+		final double dx = bsx - asx;
+		final double dy = bsy - asy;
+		final boolean wraps = dx > maxD || dx < -maxD;
+
+		if ( length > 1 )
+		{
+			final double mx = 0.5 * ( ax + bx );
+			final double my = 0.5 * ( ay + by );
+			project( mx, my );
+			final double msx = l[ 0 ];
+			final double msy = l[ 1 ];
+
+			/* squared distance of the midpoint from the chord times the squared chord length */
+			final double cross = dx * ( msy - asy ) - dy * ( msx - asx );
+			if (
+					wraps ||
+					length > maxSegment ||
+					cross * cross > tolerance2 * ( dx * dx + dy * dy ) ||
+					Math.abs( msx - asx ) > maxD )
+			{
+				edge( ax, ay, asx, asy, mx, my, msx, msy );
+				edge( mx, my, msx, msy, bx, by, bsx, bsy );
+				return;
+			}
+		}
+
+		lineTo( asx, bsx, bsy );
+	}
+
+	/**
+	 * Append the segment from source column asx to (bsx, bsy), split where
+	 * it wraps around the horizontal border of the source.
+	 */
+	final private void lineTo( final double asx, final double bsx, final double bsy )
+	{
+		++segments;
+		final double dx = bsx - asx;
+		if ( dx > maxD )
+		{
+			lineTo( bsx - sourceWidth, bsy );
+			moveTo( bsx, bsy );
+		}
+		else if ( dx < -maxD )
+		{
+			lineTo( bsx + sourceWidth, bsy );
+			moveTo( bsx, bsy );
+		}
+		else
+			lineTo( bsx, bsy );
+	}
+
+	final private void moveTo( final double x, final double y )
+	{
+		gp.moveTo( x, y );
+		include( x, y );
+	}
+
+	final private void lineTo( final double x, final double y )
+	{
+		gp.lineTo( x, y );
+		include( x, y );
+	}
+
+	final private void include( final double x, final double y )
+	{
+		minX = Math.min( minX, x );
+		minY = Math.min( minY, y );
+		maxX = Math.max( maxX, x );
+		maxY = Math.max( maxY, y );
+	}
+}
@@ -0,0 +1,128 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+
+import java.util.Arrays;
+
+/**
+ * Per-stage timings of the frames rendered by a mapping thread.  The last
+ * {@link #window} frames are kept for running percentiles and the frame
+ * rate.  Frames slower than {@link #getSlowFrameMillis()} are logged with
+ * their stage break-down.
+ *
+ * The slow frame threshold defaults to the system property
+ * <code>panorama.slowFrame</code> in ms, 0 disables logging.
+ *
+ * Not thread safe, stages are recorded and read by the presentation
+ * thread.
+ *
+ * @author Stephan Saalfeld
+ */
+public class FrameStats
+{
+	final static public int MAP = 0;
+	final static public int SWAP = 1;
+	final static public int DRAW = 2;
+	final static public int VISUALIZE = 3;
+
+	final static public String[] names = { "map", "swap", "draw", "visualize" };
+
+	/* number of frames kept */
+	final static private int window = 256;
+
+	/* per stage and total nanoseconds of the last frames */
+	final private long[][] times = new long[ names.length + 1 ][ window ];
+
+	/* end of the last frames in nanoseconds */
+	final private long[] ends = new long[ window ];
+
+	final private long[] current = new long[ names.length ];
+	private long frames = 0;
+
+	protected long slowFrameMillis = Long.getLong( "panorama.slowFrame", 0 );
+	final public long getSlowFrameMillis(){ return slowFrameMillis; }
+	final public void setSlowFrameMillis( final long slowFrameMillis ){ this.slowFrameMillis = slowFrameMillis; }
+
+	final public long getFrames(){ return frames; }
+
+	/**
+	 * Record the duration of stage in the current frame.
+	 */
+	final public void record( final int stage, final long nanos )
+	{
+		current[ stage ] = nanos;
+	}
+
+	/**
+	 * Complete the current frame.
+	 *
+	 * @param end end of the frame from {@link System#nanoTime()}
+	 */
+	public void endFrame( final long end )
+	{
+		final int i = ( int )( frames % window );
+		long total = 0;
+		for ( int s = 0; s < current.length; ++s )
+		{
+			times[ s ][ i ] = current[ s ];
+			total += current[ s ];
+		}
+		times[ current.length ][ i ] = total;
+		ends[ i ] = end;
+		++frames;
+
+		if ( slowFrameMillis > 0 && total > slowFrameMillis * 1000000 )
+		{
+			final StringBuilder s = new StringBuilder( String.format( "Slow frame %d: %.1fms (", frames, total / 1e6 ) );
+			for ( int j = 0; j < current.length; ++j )
+				s.append( String.format( "%s%s %.1fms", j == 0 ? "" : ", ", names[ j ], current[ j ] / 1e6 ) );
+			IJ.log( s.append( ")" ).toString() );
+		}
+
+		Arrays.fill( current, 0 );
+	}
+
+	/**
+	 * q-percentile of stage over the last frames in ms, stage
+	 * names.length is the frame total.
+	 */
+	public double percentile( final int stage, final double q )
+	{
+		final int n = ( int )Math.min( frames, window );
+		if ( n == 0 )
+			return 0;
+		final long[] sorted = Arrays.copyOf( times[ stage ], n );
+		Arrays.sort( sorted );
+		return sorted[ Math.min( n - 1, ( int )( q * n ) ) ] / 1e6;
+	}
+
+	/**
+	 * Frames per second over the last frames.
+	 */
+	public double fps()
+	{
+		final int n = ( int )Math.min( frames, window );
+		if ( n < 2 )
+			return 0;
+		final long last = ends[ ( int )( ( frames - 1 ) % window ) ];
+		final long first = ends[ ( int )( ( frames - n ) % window ) ];
+		return last == first ? 0 : ( n - 1 ) * 1e9 / ( last - first );
+	}
+
+	/**
+	 * Frame rate, latency and per stage median and 95th percentile, one
+	 * line each.
+	 */
+	@Override
+	public String toString()
+	{
+		final StringBuilder s = new StringBuilder( String.format(
+				"%.1f fps, latency %.1f / %.1f ms",
+				fps(),
+				percentile( names.length, 0.5 ),
+				percentile( names.length, 0.95 ) ) );
+		for ( int i = 0; i < names.length; ++i )
+			s.append( String.format( "\n%s %.1f / %.1f ms", names[ i ], percentile( i, 0.5 ), percentile( i, 0.95 ) ) );
+		return s.toString();
+	}
+}
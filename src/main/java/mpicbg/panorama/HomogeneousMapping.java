@@ -22,28 +22,73 @@ import mpicbg.models.InverseCoordinateTransform;
 import mpicbg.models.NoninvertibleModelException;
 
 /**
- *
+ * Maps 2d homogeneous coordinates.
  *
  * @author Stephan Saalfeld
  */
-public class HomogeneousMapping< T extends InverseCoordinateTransform > extends InverseTransformMapping< T >
+public class HomogeneousMapping< T extends InverseCoordinateTransform > extends InverseTransformMapping< T > implements BandMapping< T >
 {
+	final static private class Scratch
+	{
+		private PixelKernel kernel;
+		final private double[] t = new double[ 3 ];
+	}
+
+	final private ThreadLocal< Scratch > scratch = new ThreadLocal< Scratch >()
+	{
+		@Override
+		protected Scratch initialValue()
+		{
+			return new Scratch();
+		}
+	};
+
 	public HomogeneousMapping( final T t )
 	{
 		super( t );
 	}
 
+	/**
+	 * This thread's scratch with the kernel bound to source and target.
+	 */
+	final private Scratch scratch( final ImageProcessor source, final ImageProcessor target )
+	{
+		final Scratch s = scratch.get();
+		s.kernel = PixelKernel.reuse( s.kernel, source, target );
+		return s;
+	}
+
 	@Override
 	public void map(
 			final ImageProcessor source,
 			final ImageProcessor target )
 	{
-		final double[] t = new double[ 3 ];
+		mapBand( transform, source, target, 0, target.getHeight() );
+	}
+
+	@Override
+	public void mapInterpolated(
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		mapInterpolatedBand( transform, source, target, 0, target.getHeight() );
+	}
+
+	@Override
+	public void mapBand(
+			final T transform,
+			final ImageProcessor source,
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
+	{
+		final Scratch scratch = scratch( source, target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
 		final int sw = source.getWidth() - 1;
 		final int sh = source.getHeight() - 1;
 		final int tw = target.getWidth();
-		final int th = target.getHeight();
-		for ( int y = 0; y < th; ++y )
+		for ( int y = minY; y < maxY; ++y )
 		{
 			final int row = tw * y;
 			for ( int x = 0; x < tw; ++x )
@@ -63,7 +108,7 @@ public class HomogeneousMapping< T extends InverseCoordinateTransform > extends
 							tx <= sw &&
 							ty >= 0 &&
 							ty <= sh )
-						target.set( row + x, source.getPixel( tx, ty ) );
+						kernel.nearest( tx, ty, row + x );
 				}
 				catch ( final NoninvertibleModelException e ){}
 			}
@@ -71,17 +116,22 @@ public class HomogeneousMapping< T extends InverseCoordinateTransform > extends
 	}
 
 	@Override
-	public void mapInterpolated(
+	public void mapInterpolatedBand(
+			final T transform,
 			final ImageProcessor source,
-			final ImageProcessor target )
+			final ImageProcessor target,
+			final int minY,
+			final int maxY )
 	{
-		final double[] t = new double[ 3 ];
+		final Scratch scratch = scratch( source, target );
+		final double[] t = scratch.t;
+		final PixelKernel kernel = scratch.kernel;
 		final int sw = source.getWidth() - 1;
 		final int sh = source.getHeight() - 1;
 		final int tw = target.getWidth();
-		final int th = target.getHeight();
-		for ( int y = 0; y < th; ++y )
+		for ( int y = minY; y < maxY; ++y )
 		{
+			final int row = tw * y;
 			for ( int x = 0; x < tw; ++x )
 			{
 				t[ 0 ] = x;
@@ -99,7 +149,7 @@ public class HomogeneousMapping< T extends InverseCoordinateTransform > extends
 							tx <= sw &&
 							ty >= 0 &&
 							ty <= sh )
-						target.putPixel( x, y, source.getPixelInterpolated( tx, ty ) );
+						kernel.bilinear( tx, ty, row + x );
 				}
 				catch ( final NoninvertibleModelException e ){}
 			}
@@ -0,0 +1,477 @@
+package mpicbg.panorama;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A single image plane in a memory mapped file that is not read into the
+ * heap.  Supported are raw files and uncompressed, chunky TIFF and BigTIFF
+ * files with strips or tiles, 8 or 16 bit unsigned, 32 bit float gray or
+ * 8 bit RGB.  Both are described as a grid of blocks (strips or tiles) of
+ * rows, a raw file being a single block.
+ *
+ * The file is mapped in chunks of at most 1GB, pixels are read with
+ * absolute gets such that concurrent reads are safe.
+ *
+ * @author Stephan Saalfeld
+ */
+public class MappedImage
+{
+	final static public int GRAY8 = 0;
+	final static public int GRAY16 = 1;
+	final static public int GRAY32 = 2;
+	final static public int RGB = 3;
+
+	final static public String[] types = { "8-bit", "16-bit unsigned", "32-bit float", "24-bit RGB" };
+	final static private int[] bytesPerPixel = { 1, 2, 4, 3 };
+
+	final static private long chunkSize = 1L << 30;
+
+	/* chunks overlap by this many bytes such that no pixel straddles two chunks */
+	final static private int chunkOverlap = 8;
+
+	final protected File file;
+	final protected RandomAccessFile raf;
+	final protected FileChannel channel;
+	final protected long length;
+	final protected ByteOrder order;
+	final private AtomicReferenceArray< MappedByteBuffer > chunks;
+
+	protected int width;
+	protected int height;
+	protected int type;
+	protected int bpp;
+
+	/* block grid */
+	protected int blockWidth;
+	protected int blockHeight;
+	protected int blocksPerRow;
+	protected long[] blockOffsets;
+
+	private MappedImage( final File file, final ByteOrder order ) throws IOException
+	{
+		this.file = file;
+		this.order = order;
+		raf = new RandomAccessFile( file, "r" );
+		channel = raf.getChannel();
+		length = channel.size();
+		chunks = new AtomicReferenceArray< MappedByteBuffer >( ( int )( ( length + chunkSize - 1 ) / chunkSize ) );
+	}
+
+	final public File getFile(){ return file; }
+	final public int getWidth(){ return width; }
+	final public int getHeight(){ return height; }
+	final public int getType(){ return type; }
+
+	/**
+	 * Open a raw file of width &times; height pixels of type starting at
+	 * offset.  RGB pixels are three interleaved bytes.
+	 */
+	final static public MappedImage openRaw(
+			final File file,
+			final int width,
+			final int height,
+			final int type,
+			final long offset,
+			final boolean littleEndian ) throws IOException
+	{
+		final MappedImage image = new MappedImage( file, littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		image.init( width, height, type, width, height, 1, new long[]{ offset } );
+		return image;
+	}
+
+	/**
+	 * Open the first image of a TIFF or BigTIFF file.
+	 *
+	 * @throws IOException if the file is not a TIFF or its pixels are
+	 * 		compressed, planar or of an unsupported type
+	 */
+	final static public MappedImage openTiff( final File file ) throws IOException
+	{
+		final MappedImage image;
+		final RandomAccessFile header = new RandomAccessFile( file, "r" );
+		try
+		{
+			final int b0 = header.read();
+			final int b1 = header.read();
+			if ( b0 == 'I' && b1 == 'I' )
+				image = new MappedImage( file, ByteOrder.LITTLE_ENDIAN );
+			else if ( b0 == 'M' && b1 == 'M' )
+				image = new MappedImage( file, ByteOrder.BIG_ENDIAN );
+			else
+				throw new IOException( file + " is not a TIFF file." );
+		}
+		finally
+		{
+			header.close();
+		}
+		try
+		{
+			image.readTiffHeader();
+		}
+		catch ( final IOException e )
+		{
+			image.close();
+			throw e;
+		}
+		return image;
+	}
+
+	/**
+	 * Check whether file starts with a TIFF byte order mark.
+	 */
+	final static public boolean isTiff( final File file ) throws IOException
+	{
+		final RandomAccessFile header = new RandomAccessFile( file, "r" );
+		try
+		{
+			final int b0 = header.read();
+			final int b1 = header.read();
+			return ( b0 == 'I' && b1 == 'I' ) || ( b0 == 'M' && b1 == 'M' );
+		}
+		finally
+		{
+			header.close();
+		}
+	}
+
+	final private void init(
+			@SuppressWarnings( "hiding" ) final int width,
+			@SuppressWarnings( "hiding" ) final int height,
+			@SuppressWarnings( "hiding" ) final int type,
+			@SuppressWarnings( "hiding" ) final int blockWidth,
+			@SuppressWarnings( "hiding" ) final int blockHeight,
+			@SuppressWarnings( "hiding" ) final int blocksPerRow,
+			@SuppressWarnings( "hiding" ) final long[] blockOffsets ) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		this.type = type;
+		this.blockWidth = blockWidth;
+		this.blockHeight = blockHeight;
+		this.blocksPerRow = blocksPerRow;
+		this.blockOffsets = blockOffsets;
+		bpp = bytesPerPixel[ type ];
+
+		if ( width <= 0 || height <= 0 || blockWidth <= 0 || blockHeight <= 0 )
+			throw new IOException( "Invalid dimensions in " + file + "." );
+		final int blockRows = ( height + blockHeight - 1 ) / blockHeight;
+		if ( blockOffsets.length < blockRows * blocksPerRow )
+			throw new IOException( "Missing strips or tiles in " + file + "." );
+		for ( int b = 0; b < blockRows * blocksPerRow; ++b )
+		{
+			/* the last strip may be shorter */
+			final int rows = Math.min( blockHeight, height - b / blocksPerRow * blockHeight );
+			if ( blockOffsets[ b ] < 0 || blockOffsets[ b ] + ( long )rows * blockWidth * bpp > length )
+				throw new IOException( file + " is too short for its pixels." );
+		}
+	}
+
+	/**
+	 * Chunk index, mapped on first access.
+	 */
+	final private MappedByteBuffer chunk( final int index ) throws IOException
+	{
+		MappedByteBuffer chunk = chunks.get( index );
+		if ( chunk == null )
+		{
+			synchronized ( chunks )
+			{
+				chunk = chunks.get( index );
+				if ( chunk == null )
+				{
+					final long start = index * chunkSize;
+					chunk = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( chunkSize + chunkOverlap, length - start ) );
+					chunk.order( order );
+					chunks.set( index, chunk );
+				}
+			}
+		}
+		return chunk;
+	}
+
+	final private int u8( final long pos ) throws IOException
+	{
+		return chunk( ( int )( pos / chunkSize ) ).get( ( int )( pos % chunkSize ) ) & 0xff;
+	}
+
+	final private int u16( final long pos ) throws IOException
+	{
+		return chunk( ( int )( pos / chunkSize ) ).getShort( ( int )( pos % chunkSize ) ) & 0xffff;
+	}
+
+	final private long u32( final long pos ) throws IOException
+	{
+		return chunk( ( int )( pos / chunkSize ) ).getInt( ( int )( pos % chunkSize ) ) & 0xffffffffL;
+	}
+
+	final private long u64( final long pos ) throws IOException
+	{
+		return chunk( ( int )( pos / chunkSize ) ).getLong( ( int )( pos % chunkSize ) );
+	}
+
+	/**
+	 * Read the tags of the first image file directory that describe the
+	 * pixel layout.
+	 */
+	final private void readTiffHeader() throws IOException
+	{
+		final int version = u16( 2 );
+		final boolean big;
+		if ( version == 42 )
+			big = false;
+		else if ( version == 43 )
+			big = true;
+		else
+			throw new IOException( file + " is not a TIFF file." );
+
+		final long ifd = big ? u64( 8 ) : u32( 4 );
+		final long n = big ? u64( ifd ) : u16( ifd );
+		final int entrySize = big ? 20 : 12;
+		final long first = ifd + ( big ? 8 : 2 );
+
+		int w = 0, h = 0, bitsPerSample = 1, samplesPerPixel = 1, compression = 1, planar = 1, sampleFormat = 1;
+		int rowsPerStrip = Integer.MAX_VALUE, tileWidth = 0, tileLength = 0;
+		long[] offsets = null;
+
+		for ( long i = 0; i < n; ++i )
+		{
+			final long entry = first + i * entrySize;
+			final int tag = u16( entry );
+			switch ( tag )
+			{
+			case 256:
+				w = ( int )value( entry, big, 0 );
+				break;
+			case 257:
+				h = ( int )value( entry, big, 0 );
+				break;
+			case 258:
+				bitsPerSample = ( int )value( entry, big, 0 );
+				break;
+			case 259:
+				compression = ( int )value( entry, big, 0 );
+				break;
+			case 273:
+			case 324:
+				offsets = values( entry, big );
+				break;
+			case 277:
+				samplesPerPixel = ( int )value( entry, big, 0 );
+				break;
+			case 278:
+				rowsPerStrip = ( int )Math.min( Integer.MAX_VALUE, value( entry, big, 0 ) );
+				break;
+			case 284:
+				planar = ( int )value( entry, big, 0 );
+				break;
+			case 322:
+				tileWidth = ( int )value( entry, big, 0 );
+				break;
+			case 323:
+				tileLength = ( int )value( entry, big, 0 );
+				break;
+			case 339:
+				sampleFormat = ( int )value( entry, big, 0 );
+				break;
+			}
+		}
+
+		if ( compression != 1 )
+			throw new IOException( file + " is compressed, only uncompressed TIFF can be mapped." );
+		if ( offsets == null )
+			throw new IOException( file + " has no strip or tile offsets." );
+
+		final int t;
+		if ( samplesPerPixel == 1 && bitsPerSample == 8 )
+			t = GRAY8;
+		else if ( samplesPerPixel == 1 && bitsPerSample == 16 && sampleFormat == 1 )
+			t = GRAY16;
+		else if ( samplesPerPixel == 1 && bitsPerSample == 32 && sampleFormat == 3 )
+			t = GRAY32;
+		else if ( samplesPerPixel == 3 && bitsPerSample == 8 && planar == 1 )
+			t = RGB;
+		else
+			throw new IOException( file + " has an unsupported pixel type." );
+
+		if ( tileWidth > 0 && tileLength > 0 )
+			init( w, h, t, tileWidth, tileLength, ( w + tileWidth - 1 ) / tileWidth, offsets );
+		else
+			init( w, h, t, w, Math.min( rowsPerStrip, h ), 1, offsets );
+	}
+
+	/**
+	 * Size in bytes of a TIFF field type.
+	 */
+	final static private int fieldSize( final int fieldType )
+	{
+		switch ( fieldType )
+		{
+		case 1:
+		case 2:
+		case 6:
+		case 7:
+			return 1;
+		case 3:
+		case 8:
+			return 2;
+		case 16:
+		case 17:
+		case 18:
+			return 8;
+		default:
+			return 4;
+		}
+	}
+
+	/**
+	 * The ith integer value of a directory entry.
+	 */
+	final private long value( final long entry, final boolean big, final long i ) throws IOException
+	{
+		final int fieldType = u16( entry + 2 );
+		final long count = big ? u64( entry + 4 ) : u32( entry + 4 );
+		final int size = fieldSize( fieldType );
+		final long valueField = entry + ( big ? 12 : 8 );
+		final long pos = size * count <= ( big ? 8 : 4 ) ? valueField : ( big ? u64( valueField ) : u32( valueField ) );
+		switch ( size )
+		{
+		case 1:
+			return u8( pos + i );
+		case 2:
+			return u16( pos + 2 * i );
+		case 8:
+			return u64( pos + 8 * i );
+		default:
+			return u32( pos + 4 * i );
+		}
+	}
+
+	final private long[] values( final long entry, final boolean big ) throws IOException
+	{
+		final long count = big ? u64( entry + 4 ) : u32( entry + 4 );
+		final long[] v = new long[ ( int )count ];
+		for ( int i = 0; i < v.length; ++i )
+			v[ i ] = value( entry, big, i );
+		return v;
+	}
+
+	/**
+	 * Create an empty processor of the pixel type of this image.
+	 */
+	public ImageProcessor createProcessor( final int w, final int h )
+	{
+		switch ( type )
+		{
+		case GRAY8:
+			return new ByteProcessor( w, h );
+		case GRAY16:
+			return new ShortProcessor( w, h );
+		case GRAY32:
+			return new FloatProcessor( w, h );
+		default:
+			return new ColorProcessor( w, h );
+		}
+	}
+
+	/**
+	 * Read n pixels of row y starting at column x into the pixel array of
+	 * target starting at index i.
+	 *
+	 * @param x
+	 * @param y
+	 * @param n x + n &lt;= {@link #getWidth() width}
+	 * @param target pixel array of a processor from
+	 * 		{@link #createProcessor(int, int)}
+	 * @param i
+	 */
+	public void read( int x, final int y, int n, final Object target, int i ) throws IOException
+	{
+		final long rowInBlock = ( long )( y % blockHeight ) * blockWidth;
+		final int blockRow = ( y / blockHeight ) * blocksPerRow;
+		while ( n > 0 )
+		{
+			final int bx = x / blockWidth;
+			final int xInBlock = x - bx * blockWidth;
+			final int m = Math.min( n, blockWidth - xInBlock );
+			long pos = blockOffsets[ blockRow + bx ] + ( rowInBlock + xInBlock ) * bpp;
+			switch ( type )
+			{
+			case GRAY8:
+			{
+				final byte[] a = ( byte[] )target;
+				for ( int k = 0; k < m; ++k, ++pos )
+					a[ i + k ] = ( byte )u8( pos );
+				break;
+			}
+			case GRAY16:
+			{
+				final short[] a = ( short[] )target;
+				for ( int k = 0; k < m; ++k, pos += 2 )
+					a[ i + k ] = ( short )u16( pos );
+				break;
+			}
+			case GRAY32:
+			{
+				final float[] a = ( float[] )target;
+				for ( int k = 0; k < m; ++k, pos += 4 )
+					a[ i + k ] = Float.intBitsToFloat( ( int )u32( pos ) );
+				break;
+			}
+			default:
+			{
+				final int[] a = ( int[] )target;
+				for ( int k = 0; k < m; ++k, pos += 3 )
+					a[ i + k ] = 0xff000000 | ( u8( pos ) << 16 ) | ( u8( pos + 1 ) << 8 ) | u8( pos + 2 );
+			}
+			}
+			x += m;
+			i += m;
+			n -= m;
+		}
+	}
+
+	/**
+	 * Every step-th pixel of every step-th row.  Reads only 1 / step of the
+	 * rows of the file.
+	 */
+	public ImageProcessor overview( final int step ) throws IOException
+	{
+		final int w = ( width + step - 1 ) / step;
+		final int h = ( height + step - 1 ) / step;
+		final ImageProcessor ip = createProcessor( w, h );
+		final ImageProcessor row = createProcessor( width, 1 );
+		final Object rowPixels = row.getPixels();
+		for ( int y = 0; y < h; ++y )
+		{
+			read( 0, y * step, width, rowPixels, 0 );
+			for ( int x = 0; x < w; ++x )
+				ip.set( y * w + x, row.get( x * step ) );
+		}
+		return ip;
+	}
+
+	/**
+	 * Close the file.  Mapped chunks stay readable until they are garbage
+	 * collected.
+	 */
+	public void close()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch ( final IOException e ){}
+	}
+}
@@ -0,0 +1,113 @@
+package mpicbg.panorama;
+
+/**
+ * Projections of the viewing sphere onto the target plane.  Target
+ * coordinates (u, v) are relative to the center of the target and scaled
+ * by its larger side, f being the focal length.  All projections agree
+ * with {@link #RECTILINEAR} at the center of the target.
+ *
+ * @author Stephan Saalfeld
+ */
+public enum OutputProjection
+{
+	/**
+	 * Pinhole camera, straight lines stay straight, less than 180&deg; field
+	 * of view.
+	 */
+	RECTILINEAR
+	{
+		@Override
+		final public boolean ray( final double u, final double v, final double f, final double[] r )
+		{
+			final double t = 1.0 / Math.sqrt( u * u + v * v + f * f );
+			r[ 0 ] = t * u;
+			r[ 1 ] = t * v;
+			r[ 2 ] = t * f;
+			return true;
+		}
+	},
+
+	/**
+	 * Equidistant fisheye, the angle to the optical axis is proportional to
+	 * the distance from the center, up to 360&deg; field of view.
+	 */
+	FISHEYE
+	{
+		@Override
+		final public boolean ray( final double u, final double v, final double f, final double[] r )
+		{
+			final double d = Math.sqrt( u * u + v * v );
+			final double theta = d / f;
+			if ( theta > Math.PI )
+				return false;
+			radial( u, v, d, theta, f, r );
+			return true;
+		}
+	},
+
+	/**
+	 * Stereographic, conformal, looking down it shows the "little planet".
+	 */
+	STEREOGRAPHIC
+	{
+		@Override
+		final public boolean ray( final double u, final double v, final double f, final double[] r )
+		{
+			final double d = Math.sqrt( u * u + v * v );
+			radial( u, v, d, 2 * Math.atan( 0.5 * d / f ), f, r );
+			return true;
+		}
+	},
+
+	/**
+	 * Cylindrical, the horizontal angle is proportional to u, vertical lines
+	 * stay straight, up to 360&deg; horizontal field of view.
+	 */
+	CYLINDRICAL
+	{
+		@Override
+		final public boolean ray( final double u, final double v, final double f, final double[] r )
+		{
+			final double a = u / f;
+			if ( a > Math.PI || a < -Math.PI )
+				return false;
+			final double h = v / f;
+			final double t = 1.0 / Math.sqrt( 1 + h * h );
+			r[ 0 ] = t * Math.sin( a );
+			r[ 1 ] = t * h;
+			r[ 2 ] = t * Math.cos( a );
+			return true;
+		}
+	};
+
+	/**
+	 * Unit viewing ray through target coordinates (u, v).
+	 *
+	 * @param u
+	 * @param v
+	 * @param f focal length
+	 * @param r { x, y, z }
+	 *
+	 * @return false if (u, v) is outside of the projection
+	 */
+	abstract public boolean ray( final double u, final double v, final double f, final double[] r );
+
+	/**
+	 * Unit ray at angle theta to the optical axis in the direction of (u, v)
+	 * at distance d from the center.
+	 */
+	final static private void radial(
+			final double u,
+			final double v,
+			final double d,
+			final double theta,
+			final double f,
+			final double[] r )
+	{
+		/* sin( theta ) / d approaches 1 / f at the center */
+		final double s = d > 0 ? Math.sin( theta ) / d : 1.0 / f;
+		r[ 0 ] = s * u;
+		r[ 1 ] = s * v;
+		r[ 2 ] = Math.cos( theta );
+	}
+}
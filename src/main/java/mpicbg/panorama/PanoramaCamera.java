@@ -23,6 +23,8 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 	final public void setF( final double f ){ this.f = f; }
 
 	/**
+	 * Set the inverse orientation to pan( &lambda; ) &middot; tilt( &phi; )
+	 * &middot; roll( &rho; ), written in closed form.
 	 *
 	 * @param lambda
 	 * @param phi
@@ -44,27 +46,25 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 
 		/* TODO calculate m */
 
-		/* TODO reduce this */
-		final Matrix3x3 panInverse = new Matrix3x3(
-				cosLambda, 0, -sinLambda,
-				0, 1, 0,
-				sinLambda, 0, cosLambda );
-
-		final Matrix3x3 tiltInverse = new Matrix3x3(
-				1, 0, 0,
-				0, cosPhi, sinPhi,
-				0, -sinPhi, cosPhi );
-
-		final Matrix3x3 rollInverse = new Matrix3x3(
-				cosRho, sinRho, 0,
-				-sinRho, cosRho, 0,
-				0, 0, 1 );
-
-		i.set( rollInverse );
-		i.preConcatenate( tiltInverse );
-		i.preConcatenate( panInverse );
+		final double sinPhiSinRho = sinPhi * sinRho;
+		final double sinPhiCosRho = sinPhi * cosRho;
+
+		i.m00 = cosLambda * cosRho - sinLambda * sinPhiSinRho;
+		i.m01 = cosLambda * sinRho + sinLambda * sinPhiCosRho;
+		i.m02 = -sinLambda * cosPhi;
+
+		i.m10 = -cosPhi * sinRho;
+		i.m11 = cosPhi * cosRho;
+		i.m12 = sinPhi;
+
+		i.m20 = sinLambda * cosRho + cosLambda * sinPhiSinRho;
+		i.m21 = sinLambda * sinRho - cosLambda * sinPhiCosRho;
+		i.m22 = cosLambda * cosPhi;
 	}
 
+	/**
+	 * Concatenate a pan by &lambda; to the inverse orientation.
+	 */
 	final public void pan( final double lambda )
 	{
 		final double cosLambda = Math.cos( lambda );
@@ -72,14 +72,18 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 
 		/* TODO calculate m */
 
-		/* TODO reduce this */
-		final Matrix3x3 panInverse = new Matrix3x3(
-				cosLambda, 0, -sinLambda,
-				0, 1, 0,
-				sinLambda, 0, cosLambda );
-		i.concatenate( panInverse );
+		final double m00 = i.m00, m10 = i.m10, m20 = i.m20;
+		i.m00 = m00 * cosLambda + i.m02 * sinLambda;
+		i.m10 = m10 * cosLambda + i.m12 * sinLambda;
+		i.m20 = m20 * cosLambda + i.m22 * sinLambda;
+		i.m02 = i.m02 * cosLambda - m00 * sinLambda;
+		i.m12 = i.m12 * cosLambda - m10 * sinLambda;
+		i.m22 = i.m22 * cosLambda - m20 * sinLambda;
 	}
 
+	/**
+	 * Concatenate a tilt by &phi; to the inverse orientation.
+	 */
 	final public void tilt( final double phi )
 	{
 		final double cosPhi = Math.cos( phi );
@@ -87,14 +91,18 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 
 		/* TODO calculate m */
 
-		/* TODO reduce this */
-		final Matrix3x3 tiltInverse = new Matrix3x3(
-				1, 0, 0,
-				0, cosPhi, sinPhi,
-				0, -sinPhi, cosPhi );
-		i.concatenate( tiltInverse );
+		final double m01 = i.m01, m11 = i.m11, m21 = i.m21;
+		i.m01 = m01 * cosPhi - i.m02 * sinPhi;
+		i.m11 = m11 * cosPhi - i.m12 * sinPhi;
+		i.m21 = m21 * cosPhi - i.m22 * sinPhi;
+		i.m02 = m01 * sinPhi + i.m02 * cosPhi;
+		i.m12 = m11 * sinPhi + i.m12 * cosPhi;
+		i.m22 = m21 * sinPhi + i.m22 * cosPhi;
 	}
 
+	/**
+	 * Concatenate a roll by &rho; to the inverse orientation.
+	 */
 	final public void roll( final double rho )
 	{
 		final double cosRho = Math.cos( rho );
@@ -102,12 +110,13 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 
 		/* TODO calculate m */
 
-		/* TODO reduce this */
-		final Matrix3x3 panInverse = new Matrix3x3(
-				cosRho, sinRho, 0,
-				-sinRho, cosRho, 0,
-				0, 0, 1 );
-		i.concatenate( panInverse );
+		final double m00 = i.m00, m10 = i.m10, m20 = i.m20;
+		i.m00 = m00 * cosRho - i.m01 * sinRho;
+		i.m10 = m10 * cosRho - i.m11 * sinRho;
+		i.m20 = m20 * cosRho - i.m21 * sinRho;
+		i.m01 = m00 * sinRho + i.m01 * cosRho;
+		i.m11 = m10 * sinRho + i.m11 * cosRho;
+		i.m21 = m20 * sinRho + i.m21 * cosRho;
 	}
 
 	/* the target (camera plane)*/
@@ -134,6 +143,29 @@ public abstract class PanoramaCamera< T extends PanoramaCamera< T > > implements
 	}
 
 
+	/**
+	 * Rotated viewing ray through target pixel (0, y) and its increment per
+	 * target pixel along row y.  The ray through target pixel (x, y) is
+	 * ( r[ 0 ] + x * r[ 1 ], r[ 2 ] + x * r[ 3 ], r[ 4 ] + x * r[ 5 ] ),
+	 * rays are not normalized.
+	 *
+	 * @param y target row
+	 * @param r { x, dx, y, dy, z, dz }
+	 */
+	final public void ray( final double y, final double[] r )
+	{
+		final double x0 = -targetWidth2 / targetMaxSize;
+		final double y0 = ( y - targetHeight2 ) / targetMaxSize;
+		final double d = 1.0 / targetMaxSize;
+
+		r[ 0 ] = i.m00 * x0 + i.m01 * y0 + i.m02 * f;
+		r[ 1 ] = i.m00 * d;
+		r[ 2 ] = i.m10 * x0 + i.m11 * y0 + i.m12 * f;
+		r[ 3 ] = i.m10 * d;
+		r[ 4 ] = i.m20 * x0 + i.m21 * y0 + i.m22 * f;
+		r[ 5 ] = i.m20 * d;
+	}
+
 	final public void resetOrientation()
 	{
 		m.reset();
@@ -0,0 +1,222 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders views of an equirectangular panorama without a viewer window.
+ * The source is sampled in place and, optionally, the {@link CubeMap} is
+ * prepared once and shared by all frames.  Batches of views are rendered
+ * concurrently with one frame per task on the shared
+ * {@link RowBands#getPool() pool}, each frame is rendered single-threaded.
+ *
+ * @author Stephan Saalfeld
+ */
+public class PanoramaRenderer
+{
+	/**
+	 * A view pose (&lambda;, &phi;, &rho;, f) and the size of the frame.
+	 */
+	final static public class View
+	{
+		final public double lambda;
+		final public double phi;
+		final public double rho;
+		final public double f;
+		final public int width;
+		final public int height;
+
+		public View(
+				final double lambda,
+				final double phi,
+				final double rho,
+				final double f,
+				final int width,
+				final int height )
+		{
+			this.lambda = lambda;
+			this.phi = phi;
+			this.rho = rho;
+			this.f = f;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	final protected ImageProcessor source;
+	final protected EquirectangularProjection p = new EquirectangularProjection();
+	final protected EquirectangularMapping mapping;
+	final protected CubeMap cubeMap;
+
+	protected boolean interpolate = true;
+	final public boolean isInterpolate(){ return interpolate; }
+	final public void setInterpolate( final boolean interpolate ){ this.interpolate = interpolate; }
+
+	/* maximal source coordinate error in px of the adaptive mesh, exact if 0 */
+	protected double tolerance = 0;
+	final public double getTolerance(){ return tolerance; }
+	final public void setTolerance( final double tolerance )
+	{
+		this.tolerance = tolerance;
+		mapping.setTolerance( tolerance );
+	}
+
+	/**
+	 * @param ip equirectangular source
+	 * @param minLambda
+	 * @param minPhi
+	 * @param hfov
+	 * @param vfov
+	 * @param cubeFaces render frames from a cube map instead of the source,
+	 * 		pays off for many frames
+	 */
+	public PanoramaRenderer(
+			final ImageProcessor ip,
+			final double minLambda,
+			final double minPhi,
+			final double hfov,
+			final double vfov,
+			final boolean cubeFaces )
+	{
+		p.setMinLambda( minLambda );
+		p.setMinPhi( minPhi );
+		p.setLambdaPiScale( Math.PI / hfov * ip.getWidth() );
+		p.setPhiPiScale( Math.PI / vfov * ( ip.getHeight() - 1 ) );
+		p.setWrap( hfov == 2.0 * Math.PI );
+		p.setExtendBottom( vfov == Math.PI );
+		p.setF( 0.5 );
+
+		source = ip;
+		mapping = new EquirectangularMapping( p.clone() );
+
+		if ( cubeFaces )
+		{
+			final int cubeSize = ( int )Math.round( Math.max( p.getPhiPiScale(), p.getLambdaPiScale() ) * 2.0 / Math.PI );
+			cubeMap = new CubeMap( ip, cubeSize );
+			cubeMap.render( source, p );
+			cubeMap.createPyramid();
+		}
+		else
+			cubeMap = null;
+	}
+
+	public PanoramaRenderer(
+			final ImagePlus imp,
+			final double minLambda,
+			final double minPhi,
+			final double hfov,
+			final double vfov,
+			final boolean cubeFaces )
+	{
+		this( imp.getProcessor(), minLambda, minPhi, hfov, vfov, cubeFaces );
+	}
+
+	/**
+	 * Render view into target in the calling thread.
+	 */
+	public void render( final View view, final ImageProcessor target )
+	{
+		if ( cubeMap == null )
+		{
+			final EquirectangularProjection q = p.clone();
+			q.setOrientation( view.lambda, view.phi, view.rho );
+			q.setF( view.f );
+			q.setTargetWidth( target.getWidth() );
+			q.setTargetHeight( target.getHeight() );
+			if ( interpolate )
+				mapping.mapInterpolatedBand( q, source, target, 0, target.getHeight() );
+			else
+				mapping.mapBand( q, source, target, 0, target.getHeight() );
+		}
+		else
+		{
+			final RectlinearCamera camera = new RectlinearCamera();
+			camera.setOrientation( view.lambda, view.phi, view.rho );
+			camera.setF( view.f );
+			camera.setTargetWidth( target.getWidth() );
+			camera.setTargetHeight( target.getHeight() );
+			final int level = cubeMap.selectLevel( CubeMapMapping.scale( camera, cubeMap.getSize() ) );
+			final CubeMapMapping cubeMapping = new CubeMapMapping( camera );
+			cubeMapping.setInterpolate( interpolate );
+			cubeMapping.setTolerance( tolerance );
+			cubeMapping.mapBand(
+					camera,
+					cubeMap.getLevel( level ),
+					target,
+					CubeMapMapping.visibleFaces( camera ),
+					0,
+					target.getHeight() );
+		}
+	}
+
+	/**
+	 * Render view into a new processor in the calling thread.
+	 */
+	public ImageProcessor render( final View view )
+	{
+		final ImageProcessor target = source.createProcessor( view.width, view.height );
+		render( view, target );
+		return target;
+	}
+
+	/**
+	 * Render all views concurrently.
+	 */
+	public ImageProcessor[] render( final List< View > views )
+	{
+		final ImageProcessor[] frames = new ImageProcessor[ views.size() ];
+		RowBands.render(
+				frames.length,
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						for ( int i = minY; i < maxY; ++i )
+							frames[ i ] = PanoramaRenderer.this.render( views.get( i ) );
+					}
+				} );
+		return frames;
+	}
+
+	/**
+	 * Render all views concurrently and save them to directory as
+	 * prefix00000.tif, prefix00001.tif, ...  Frames are saved as soon as
+	 * they are rendered and not kept in memory.
+	 *
+	 * @return the number of frames that could not be saved
+	 */
+	public int render( final List< View > views, final File directory, final String prefix )
+	{
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		RowBands.render(
+				views.size(),
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						for ( int i = minY; i < maxY; ++i )
+						{
+							final String name = String.format( "%s%05d", prefix, i );
+							final ImageProcessor frame = PanoramaRenderer.this.render( views.get( i ) );
+							final File file = new File( directory, name + ".tif" );
+							if ( !new FileSaver( new ImagePlus( name, frame ) ).saveAsTiff( file.getPath() ) )
+							{
+								IJ.log( "Could not save " + file );
+								failed.incrementAndGet();
+							}
+							IJ.showProgress( done.incrementAndGet(), views.size() );
+						}
+					}
+				} );
+		return failed.get();
+	}
+}
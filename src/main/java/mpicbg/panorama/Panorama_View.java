@@ -2,124 +2,24 @@ package mpicbg.panorama;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
 import ij.process.ImageProcessor;
-import mpicbg.ij.InverseTransformMapping;
+
+import java.io.File;
+import java.io.IOException;
 
 public class Panorama_View extends AbstractPanorama_View
 {
-	final private class CubeFaceMapper
-	{
-		protected boolean interpolate = true;
-		final private HomogeneousMapping< RectlinearCamera > mapping = new HomogeneousMapping< RectlinearCamera >( new RectlinearCamera() );
-		final private PanoramaCamera< ? > camera;
-		final private RectlinearCamera front;
-
-		public CubeFaceMapper(
-				final PanoramaCamera< ? > camera )
-		{
-			this.camera = camera;
-			this.front = new RectlinearCamera();
-			front.setCamera( camera );
-
-			/* cubefaces have a width and height of +1px each for off-range interpolation */
-			front.setSourceWidth( frontSource.getWidth() - 1 );
-			front.setSourceHeight( frontSource.getHeight() - 1 );
-		}
-
-		final public void toggleInterpolation()
-		{
-			interpolate = !interpolate;
-		}
-
-		final public void map( final ImageProcessor target )
-		{
-			front.setTargetWidth( target.getWidth() );
-			front.setTargetHeight( target.getHeight() );
-
-			front.setCamera( camera );
-			final RectlinearCamera face = front.clone();
-			face.resetOrientation();
-			target.reset();
-			if ( interpolate ) /* TODO This is stupid---the mapping should have the interpolation method as a state */
-			{
-				mapping.getTransform().set( front );
-				mapping.mapInterpolated( frontSource, target );
-
-				face.pan( Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( rightSource, target );
-
-				face.resetOrientation();
-				face.pan( Math.PI );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( backSource, target );
-
-				face.resetOrientation();
-				face.pan( 3.0 * Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( leftSource, target );
-
-				face.resetOrientation();
-				face.tilt( Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( topSource, target );
-
-				face.resetOrientation();
-				face.tilt( -Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.mapInterpolated( bottomSource, target );
-			}
-			else
-			{
-				mapping.getTransform().set( front );
-				mapping.map( frontSource, target );
-
-				face.pan( Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( rightSource, target );
-
-				face.resetOrientation();
-				face.pan( Math.PI );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( backSource, target );
-
-				face.resetOrientation();
-				face.pan( 3.0 * Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( leftSource, target );
-
-				face.resetOrientation();
-				face.tilt( Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( topSource, target );
-
-				face.resetOrientation();
-				face.tilt( -Math.PI / 2.0 );
-				face.preConcatenateOrientation( front );
-				mapping.getTransform().set( face );
-				mapping.map( bottomSource, target );
-			}
-		}
-	}
-
 	final private class MappingThread extends AbstractMappingThread
 	{
-		final protected CubeFaceMapper mapper;
+		final protected CubeMapMapping mapper;
 		final protected PanoramaCamera< ? > camera;
+		private boolean interpolate = true;
 
 		public MappingThread(
 				final ImagePlus impSource,
 				final ImagePlus impTarget,
-				final CubeFaceMapper mapper,
+				final CubeMapMapping mapper,
 				final ImageProcessor target,
 				final PanoramaCamera< ? > camera )
 		{
@@ -129,31 +29,48 @@ public class Panorama_View extends AbstractPanorama_View
 		}
 
 		@Override
-		final protected void map()
+		final protected void map( final ImageProcessor target, final boolean preview )
 		{
-			lambda += dt * dLambda;
-			phi += dt * dPhi;
-
 			this.camera.setOrientation( lambda, phi, rho );
-
-			mapper.map( temp );
+			mapper.getTransform().setCamera( camera );
+			mapper.setInterpolate( interpolate && !preview );
+
+			final StackPlayer< CubeMap > player = stackPlayer;
+			final CubeMap frameCubeMap = player == null ? cubeMap : player.getCurrent();
+			if ( tiledCubeMap != null )
+				mapper.map( tiledCubeMap, target );
+			else if ( frameCubeMap != null )
+				mapper.map( frameCubeMap, target );
 		}
 
+		@Override
+		final protected boolean isInterpolate(){ return interpolate; }
+
 		@Override
 		final public void toggleInterpolation()
 		{
-			mapper.toggleInterpolation();
+			interpolate = !interpolate;
 		}
 	}
 
-	private ImageProcessor frontSource;
-	private ImageProcessor backSource;
-	private ImageProcessor leftSource;
-	private ImageProcessor rightSource;
-	private ImageProcessor topSource;
-	private ImageProcessor bottomSource;
+	/* edge length of lazily rendered cube-face tiles */
+	final static private int tileSize = 256;
+
+	/* null once released */
+	private volatile CubeMap cubeMap;
+	private TiledCubeMap tiledCubeMap;
+	private volatile StackPlayer< CubeMap > stackPlayer;
 
 	static private boolean showCubefaces = false;
+	static private boolean cacheCubefaces = false;
+	static private boolean mipmaps = true;
+	static private boolean lazyCubefaces = false;
+	static private boolean exportTiles = false;
+	static private int exportTileSize = 512;
+	static private int exportFormat = 0;
+	static private double meshTolerance = 0;
+
+	final static private String[] exportFormats = { "jpg", "png" };
 
 	@Override
 	protected boolean setup( final ImagePlus imp )
@@ -172,6 +89,12 @@ public class Panorama_View extends AbstractPanorama_View
 
 		gd.addMessage( "Miscellaneous" );
 		gd.addCheckbox( "show cube-faces", showCubefaces );
+		gd.addCheckbox( "cache cube-faces", cacheCubefaces );
+		gd.addCheckbox( "mipmaps", mipmaps );
+		gd.addCheckbox( "render cube-faces on demand", lazyCubefaces );
+		gd.addCheckbox( "export cube-face tiles instead of viewing", exportTiles );
+		gd.addNumericField( "mesh tolerance (px, 0 exact) : ", meshTolerance, 2 );
+		addPlaybackFields( gd, imp );
 
 //		gd.addHelp( "http://fiji.sc/wiki/index.php/Enhance_Local_Contrast_(CLAHE)" );
 
@@ -193,28 +116,74 @@ public class Panorama_View extends AbstractPanorama_View
 		height = ( int )gd.getNextNumber();
 
 		showCubefaces = gd.getNextBoolean();
+		cacheCubefaces = gd.getNextBoolean();
+		mipmaps = gd.getNextBoolean();
+		lazyCubefaces = gd.getNextBoolean();
+		exportTiles = gd.getNextBoolean();
+		meshTolerance = Math.max( 0, gd.getNextNumber() );
+		readPlaybackFields( gd, imp );
+
+		if ( exportTiles )
+		{
+			/* export only, there is nothing to view */
+			exportTiles();
+			return false;
+		}
 
 		return true;
 	}
 
-	private MappingThread painter;
+	/**
+	 * Write a cube-face tile pyramid of the source to a directory chosen by
+	 * the user.
+	 */
+	final private void exportTiles()
+	{
+		final GenericDialog gd = new GenericDialog( "Export Cube-Face Tiles" );
+		gd.addNumericField( "tile size : ", exportTileSize, 0 );
+		gd.addChoice( "format : ", exportFormats, exportFormats[ exportFormat ] );
+		gd.showDialog();
+		if ( gd.wasCanceled() ) return;
 
-	@Override
-	public void run( final String arg )
-    {
-		imp = IJ.getImage();
+		exportTileSize = Math.max( 1, ( int )gd.getNextNumber() );
+		exportFormat = gd.getNextChoiceIndex();
 
-		if ( imp == null )
+		final String directory = new DirectoryChooser( "Export Cube-Face Tiles" ).getDirectory();
+		if ( directory == null ) return;
+
+		initProjection( imp, minLambda, minPhi, hfov, vfov );
+		final int cubeSize = ( int )Math.round( Math.max( p.getPhiPiScale(), p.getLambdaPiScale() ) * 2.0 / Math.PI );
+
+		final CubeMapExport export;
+		if ( mappedImage != null )
 		{
-			IJ.error( "No image open." );
-			return;
+			tiledSource = createTiledSource( hfov, vfov );
+			export = new CubeMapExport( tiledSource, p, cubeSize, exportTileSize );
 		}
+		else
+			export = new CubeMapExport( imp.getProcessor(), p, cubeSize, exportTileSize );
+		export.setFormat( exportFormats[ exportFormat ] );
 
-		if ( !setup( imp ) )
-			return;
-
-		run( imp, width, height, minLambda, minPhi, hfov, vfov );
-    }
+		try
+		{
+			export.export( new File( directory ) );
+		}
+		catch ( final IOException e )
+		{
+			IJ.error( "Export failed: " + e.getMessage() );
+		}
+		catch ( final RuntimeException e )
+		{
+			IJ.error( "Export failed: " + ( e.getCause() == null ? e : e.getCause() ).getMessage() );
+		}
+		finally
+		{
+			if ( tiledSource != null )
+				tiledSource.dispose();
+			if ( mappedImage != null )
+				mappedImage.close();
+		}
+	}
 
 	@Override
 	protected MappingThread createPainter( final ImagePlus impViewer )
@@ -224,18 +193,61 @@ public class Panorama_View extends AbstractPanorama_View
 		//final int cubeSize = 500;
 		final int cubeSize = ( int )Math.round( Math.max( p.getPhiPiScale(), p.getLambdaPiScale() ) * 2.0 / Math.PI );
 
-		frontSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
-		backSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
-		leftSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
-		rightSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
-		topSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
-		bottomSource = ip.createProcessor( cubeSize + 1, cubeSize + 1 );
+		if ( mappedImage != null )
+			tiledSource = createTiledSource( hfov, vfov );
 
-		renderCubeFaces( hfov, vfov );
+		if ( lazyCubefaces )
+		{
+			if ( tiledSource != null )
+				tiledCubeMap = new TiledCubeMap(
+						tiledSource,
+						p,
+						cubeSize,
+						tileSize,
+						Runtime.getRuntime().maxMemory() / 4,
+						mipmaps );
+			else
+				tiledCubeMap = new TiledCubeMap(
+						imp.getProcessor(),
+						p,
+						cubeSize,
+						tileSize,
+						Runtime.getRuntime().maxMemory() / 4,
+						mipmaps );
+		}
+		else
+		{
+			if ( tiledSource != null )
+				cubeMap = renderCubeFaces( null, new CubeMap( ip, cubeSize ), false );
+			else
+				cubeMap = SharedCubeMaps.acquire(
+						imp.getProcessor(),
+						p,
+						cubeSize,
+						mipmaps,
+						new SharedCubeMaps.Factory()
+						{
+							@Override
+							final public CubeMap create()
+							{
+								return renderCubeFaces( imp.getProcessor(), new CubeMap( ip, cubeSize ), cacheCubefaces );
+							}
+						} );
+
+			if ( showCubefaces )
+			{
+				new ImagePlus( "front", cubeMap.getFace( CubeMap.FRONT ) ).show();
+				new ImagePlus( "back", cubeMap.getFace( CubeMap.BACK ) ).show();
+				new ImagePlus( "left", cubeMap.getFace( CubeMap.LEFT ) ).show();
+				new ImagePlus( "right", cubeMap.getFace( CubeMap.RIGHT ) ).show();
+				new ImagePlus( "top", cubeMap.getFace( CubeMap.TOP ) ).show();
+				new ImagePlus( "bottom", cubeMap.getFace( CubeMap.BOTTOM ) ).show();
+			}
+		}
 
 		/* instantiate and run mapper and painter */
-		final CubeFaceMapper mapper = new CubeFaceMapper(
-				p );
+		final CubeMapMapping mapper = new CubeMapMapping( new RectlinearCamera() );
+		mapper.setTolerance( meshTolerance );
 
 		return new MappingThread(
 				imp,
@@ -245,58 +257,91 @@ public class Panorama_View extends AbstractPanorama_View
 				p );
     }
 
-	final private void renderCubeFaces( final double hfov, final double vfov )
+	@Override
+	protected void release()
 	{
-		/* fragile, but that's not public API and we know what we're doing... */
-		final double cubeSize = frontSource.getWidth() - 1;
-
-		/* prepare extended image */
-		ipSource = ip.createProcessor(
-				hfov == 2.0 * Math.PI ? imp.getWidth() + 1 : imp.getWidth(),
-				vfov == Math.PI ? imp.getHeight() + 1 : imp.getHeight() );
-		prepareExtendedImage( imp.getProcessor(), ipSource );
-
-		/* render cube faces */
-		final EquirectangularProjection q = p.clone();
-		q.resetOrientation();
-		q.setTargetWidth( cubeSize );
-		q.setTargetHeight( cubeSize );
-		q.setF( 0.5f );
-
-		final InverseTransformMapping< EquirectangularProjection > qMapping = new InverseTransformMapping< EquirectangularProjection >( q );
-
-		IJ.showStatus( "Rendering cube faces..." );
-		IJ.showProgress( 0, 6 );
-		qMapping.mapInterpolated( ipSource, frontSource );
-		IJ.showProgress( 1, 6 );
-		q.pan( Math.PI );
-		qMapping.mapInterpolated( ipSource, backSource );
-		IJ.showProgress( 2, 6 );
-		q.resetOrientation();
-		q.pan( Math.PI / 2 );
-		qMapping.mapInterpolated( ipSource, leftSource );
-		IJ.showProgress( 3, 6 );
-		q.resetOrientation();
-		q.pan( -Math.PI / 2 );
-		qMapping.mapInterpolated( ipSource, rightSource );
-		IJ.showProgress( 4, 6 );
-		q.resetOrientation();
-		q.tilt( -Math.PI / 2 );
-		qMapping.mapInterpolated( ipSource, topSource );
-		IJ.showProgress( 5, 6 );
-		q.resetOrientation();
-		q.tilt( Math.PI / 2 );
-		qMapping.mapInterpolated( ipSource, bottomSource );
-		IJ.showProgress( 6, 6 );
-
-		if ( showCubefaces )
+		if ( tiledCubeMap != null )
+			tiledCubeMap.dispose();
+		/* release once, a repeated ESC or ENTER must not drop another viewer's reference */
+		final CubeMap released = cubeMap;
+		cubeMap = null;
+		if ( released != null )
+			SharedCubeMaps.release( released );
+	}
+
+	/**
+	 * Slices are prepared into cube maps.  Lazily rendered and out-of-core
+	 * cube maps cannot be played.
+	 */
+	@Override
+	protected StackPlayer< CubeMap > createPlayer()
+	{
+		final CubeMap current = cubeMap;
+		if ( current == null || tiledSource != null || imp.getStackSize() < 2 )
+			return null;
+		final int cubeSize = current.getSize();
+		stackPlayer = new StackPlayer< CubeMap >(
+				imp.getStack(),
+				imp.getCurrentSlice(),
+				current,
+				lookAhead,
+				new StackPlayer.Loader< CubeMap >()
+				{
+					@Override
+					final public CubeMap load( final ImageProcessor slice, final CubeMap recycled )
+					{
+						/* hashing and storing every slice would slow down and flood the cache */
+						return renderCubeFaces(
+								slice,
+								recycled == null ? new CubeMap( ip, cubeSize ) : recycled,
+								false );
+					}
+				} );
+		return stackPlayer;
+	}
+
+	/**
+	 * Render the faces of cubeMap from source, or from
+	 * {@link #tiledSource} if there is one, and create its pyramid.  With
+	 * useCache, in-heap sources are loaded from and stored in the
+	 * {@link CubeMapCache}.
+	 *
+	 * @return cubeMap
+	 */
+	final private CubeMap renderCubeFaces( final ImageProcessor source, final CubeMap cubeMap, final boolean useCache )
+	{
+		if ( tiledSource != null )
 		{
-			new ImagePlus( "front", frontSource ).show();
-			new ImagePlus( "back", backSource ).show();
-			new ImagePlus( "left", leftSource ).show();
-			new ImagePlus( "right", rightSource ).show();
-			new ImagePlus( "top", topSource ).show();
-			new ImagePlus( "bottom", bottomSource ).show();
+			/* out-of-core sources are too large to be hashed for the cache */
+			cubeMap.render( tiledSource, p );
 		}
+		else
+		{
+			final String key;
+			if ( useCache )
+			{
+				IJ.showStatus( "Looking up cube faces..." );
+				key = CubeMapCache.key( source, p, cubeMap.getSize() );
+			}
+			else
+				key = null;
+
+			if ( key == null || !CubeMapCache.load( key, cubeMap ) )
+			{
+				/* render cube faces */
+				cubeMap.render( source, p );
+
+				if ( key != null )
+					CubeMapCache.store( key, cubeMap );
+			}
+		}
+
+		if ( mipmaps )
+		{
+			IJ.showStatus( "Creating cube face pyramid..." );
+			cubeMap.createPyramid();
+		}
+
+		return cubeMap;
 	}
 }
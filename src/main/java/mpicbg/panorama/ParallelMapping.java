@@ -0,0 +1,92 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+import mpicbg.ij.Mapping;
+
+/**
+ * Renders a {@link BandMapping} in row bands on the shared
+ * {@link RowBands#getPool() pool}.  Each worker thread keeps its own copy of
+ * the transform that is updated at the start of each band, such that
+ * steady state frames do not allocate.
+ *
+ * @author Stephan Saalfeld
+ */
+public class ParallelMapping< T extends PanoramaCamera< T > > implements Mapping< T >
+{
+	final protected BandMapping< T > mapping;
+	final protected T transform;
+
+	final private ThreadLocal< T > transforms = new ThreadLocal< T >()
+	{
+		@Override
+		protected T initialValue()
+		{
+			return transform.clone();
+		}
+	};
+
+	/* source and target of the current frame */
+	private ImageProcessor source;
+	private ImageProcessor target;
+
+	final private RowBands.Job job;
+	final private RowBands.Job interpolatedJob;
+
+	public ParallelMapping( final BandMapping< T > mapping, final T transform )
+	{
+		this.mapping = mapping;
+		this.transform = transform;
+
+		job = new RowBands.Job(
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						ParallelMapping.this.mapping.mapBand( localTransform(), source, target, minY, maxY );
+					}
+				} );
+		interpolatedJob = new RowBands.Job(
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						ParallelMapping.this.mapping.mapInterpolatedBand( localTransform(), source, target, minY, maxY );
+					}
+				} );
+	}
+
+	@Override
+	final public T getTransform(){ return transform; }
+
+	/**
+	 * This thread's copy of {@link #transform}.
+	 */
+	final private T localTransform()
+	{
+		final T t = transforms.get();
+		t.set( transform );
+		return t;
+	}
+
+	@Override
+	synchronized public void map(
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		this.source = source;
+		this.target = target;
+		job.render( target.getHeight() );
+	}
+
+	@Override
+	synchronized public void mapInterpolated(
+			final ImageProcessor source,
+			final ImageProcessor target )
+	{
+		this.source = source;
+		this.target = target;
+		interpolatedJob.render( target.getHeight() );
+	}
+}
@@ -0,0 +1,413 @@
+package mpicbg.panorama;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Copies or interpolates source pixels into a target pixel array.  Kernels
+ * read and write the primitive pixel arrays of {@link ImageProcessor
+ * ImageProcessors} directly instead of going through
+ * {@link ImageProcessor#getPixel(int, int)} and
+ * {@link ImageProcessor#putPixel(int, int, int)}.
+ *
+ * Coordinates are not checked, callers are responsible for
+ * 0 &lt;= x &lt;= width - 1 and 0 &lt;= y &lt;= height - 1, or up to width
+ * and height for a source that is {@link #extend(boolean, boolean)
+ * extended}.
+ *
+ * @author Stephan Saalfeld
+ */
+abstract public class PixelKernel
+{
+	protected int sourceWidth;
+	protected int sourceHeight;
+
+	/* last valid upper left corner for bilinear interpolation */
+	protected int maxX0;
+	protected int maxY0;
+
+	/* last column and row, their right and lower neighbors wrap and clamp */
+	protected int lastX;
+	protected int lastY;
+
+	final public int getSourceWidth(){ return sourceWidth; }
+	final public int getSourceHeight(){ return sourceHeight; }
+
+	/**
+	 * Re-read the pixel array and dimensions of source, e.g. to switch
+	 * between tiles of the same type.
+	 */
+	public void setSource( final ImageProcessor source )
+	{
+		sourceWidth = source.getWidth();
+		sourceHeight = source.getHeight();
+		lastX = sourceWidth - 1;
+		lastY = sourceHeight - 1;
+		extend( false, false );
+	}
+
+	/**
+	 * Sample the source as if it was extended like
+	 * {@link AbstractPanorama_View#prepareExtendedImage(ImageProcessor,
+	 * ImageProcessor)} without copying it.  Bilinear interpolation then
+	 * reads column 0 as the right neighbor of the last column and the last
+	 * row as its own lower neighbor.  {@link #setSource(ImageProcessor)}
+	 * resets the extension.
+	 *
+	 * @param wrap extend by the first column, for 360&deg; panoramas
+	 * @param extendBottom extend by a copy of the last row, for 180&deg;
+	 * 		panoramas
+	 */
+	final public void extend( final boolean wrap, final boolean extendBottom )
+	{
+		maxX0 = wrap ? lastX : Math.max( 0, sourceWidth - 2 );
+		maxY0 = extendBottom ? lastY : Math.max( 0, sourceHeight - 2 );
+	}
+
+	/**
+	 * Re-read the pixel array of target, e.g. after
+	 * {@link ImageProcessor#setPixels(Object)}.
+	 */
+	abstract public void setTarget( final ImageProcessor target );
+
+	/**
+	 * Re-read the pixel arrays and dimensions of source and target.
+	 */
+	final public void set( final ImageProcessor source, final ImageProcessor target )
+	{
+		setSource( source );
+		setTarget( target );
+	}
+
+	/**
+	 * Copy source pixel (x, y) into the target pixel at index i.
+	 */
+	abstract public void nearest( final int x, final int y, final int i );
+
+	/**
+	 * Interpolate source pixel (x, y) bilinearly and store the result in
+	 * the target pixel at index i.
+	 */
+	public void bilinear( final double x, final double y, final int i )
+	{
+		final int x0 = Math.min( ( int )x, maxX0 );
+		final int y0 = Math.min( ( int )y, maxY0 );
+		final int a = y0 * sourceWidth + x0;
+		interpolate(
+				a,
+				x0 < lastX ? 1 : -x0,
+				y0 < lastY ? a + sourceWidth : a,
+				x - x0,
+				y - y0,
+				i );
+	}
+
+	/**
+	 * Interpolate source pixels (xs[k], ys[k]) bilinearly for k in
+	 * [from, to) and store the results in the target pixels at index i + k.
+	 */
+	final public void bilinear( final double[] xs, final double[] ys, final int from, final int to, final int i )
+	{
+		for ( int k = from; k < to; ++k )
+			bilinear( xs[ k ], ys[ k ], i + k );
+	}
+
+	/**
+	 * Interpolate between the source pixels at index a and b = a or the
+	 * pixel below a, and their right neighbors at a + r and b + r, with
+	 * weights dx and dy, and store the result in the target pixel at
+	 * index i.
+	 */
+	abstract protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i );
+
+	/**
+	 * Set the target pixel at index i to 0, i.e. background.
+	 */
+	abstract public void clear( final int i );
+
+	final static private Class< ? extends PixelKernel > kernelClass( final ImageProcessor source, final ImageProcessor target )
+	{
+		if ( source instanceof ByteProcessor && target instanceof ByteProcessor )
+			return ByteKernel.class;
+		else if ( source instanceof ShortProcessor && target instanceof ShortProcessor )
+			return ShortKernel.class;
+		else if ( source instanceof FloatProcessor && target instanceof FloatProcessor )
+			return FloatKernel.class;
+		else if ( source instanceof ColorProcessor && target instanceof ColorProcessor )
+			return RGBKernel.class;
+		else
+			return ProcessorKernel.class;
+	}
+
+	/**
+	 * Create a kernel for the pixel type of source and target.  Falls back
+	 * to {@link ImageProcessor} accessors if the types differ.
+	 */
+	final static public PixelKernel create( final ImageProcessor source, final ImageProcessor target )
+	{
+		final Class< ? extends PixelKernel > c = kernelClass( source, target );
+		final PixelKernel kernel;
+		if ( c == ByteKernel.class )
+			kernel = new ByteKernel();
+		else if ( c == ShortKernel.class )
+			kernel = new ShortKernel();
+		else if ( c == FloatKernel.class )
+			kernel = new FloatKernel();
+		else if ( c == RGBKernel.class )
+			kernel = new RGBKernel();
+		else
+			kernel = new ProcessorKernel();
+		kernel.set( source, target );
+		return kernel;
+	}
+
+	/**
+	 * Re-bind kernel to source and target if it matches their pixel types,
+	 * create a new kernel otherwise.  Lets frame loops keep their kernels.
+	 *
+	 * @param kernel may be null
+	 */
+	final static public PixelKernel reuse( final PixelKernel kernel, final ImageProcessor source, final ImageProcessor target )
+	{
+		if ( kernel != null && kernel.getClass() == kernelClass( source, target ) )
+		{
+			kernel.set( source, target );
+			return kernel;
+		}
+		return create( source, target );
+	}
+
+	final static public class ByteKernel extends PixelKernel
+	{
+		private byte[] source;
+		private byte[] target;
+
+		@Override
+		final public void setSource( final ImageProcessor source )
+		{
+			super.setSource( source );
+			this.source = ( byte[] )source.getPixels();
+		}
+
+		@Override
+		final public void setTarget( final ImageProcessor target )
+		{
+			this.target = ( byte[] )target.getPixels();
+		}
+
+		@Override
+		final public void clear( final int i )
+		{
+			target[ i ] = 0;
+		}
+
+		@Override
+		final public void nearest( final int x, final int y, final int i )
+		{
+			target[ i ] = source[ y * sourceWidth + x ];
+		}
+
+		@Override
+		final protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i )
+		{
+			final double v0 = ( source[ a ] & 0xff ) + dx * ( ( source[ a + r ] & 0xff ) - ( source[ a ] & 0xff ) );
+			final double v1 = ( source[ b ] & 0xff ) + dx * ( ( source[ b + r ] & 0xff ) - ( source[ b ] & 0xff ) );
+			target[ i ] = ( byte )( int )( v0 + dy * ( v1 - v0 ) + 0.5 );
+		}
+	}
+
+	final static public class ShortKernel extends PixelKernel
+	{
+		private short[] source;
+		private short[] target;
+
+		@Override
+		final public void setSource( final ImageProcessor source )
+		{
+			super.setSource( source );
+			this.source = ( short[] )source.getPixels();
+		}
+
+		@Override
+		final public void setTarget( final ImageProcessor target )
+		{
+			this.target = ( short[] )target.getPixels();
+		}
+
+		@Override
+		final public void clear( final int i )
+		{
+			target[ i ] = 0;
+		}
+
+		@Override
+		final public void nearest( final int x, final int y, final int i )
+		{
+			target[ i ] = source[ y * sourceWidth + x ];
+		}
+
+		@Override
+		final protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i )
+		{
+			final double v0 = ( source[ a ] & 0xffff ) + dx * ( ( source[ a + r ] & 0xffff ) - ( source[ a ] & 0xffff ) );
+			final double v1 = ( source[ b ] & 0xffff ) + dx * ( ( source[ b + r ] & 0xffff ) - ( source[ b ] & 0xffff ) );
+			target[ i ] = ( short )( int )( v0 + dy * ( v1 - v0 ) + 0.5 );
+		}
+	}
+
+	final static public class FloatKernel extends PixelKernel
+	{
+		private float[] source;
+		private float[] target;
+
+		@Override
+		final public void setSource( final ImageProcessor source )
+		{
+			super.setSource( source );
+			this.source = ( float[] )source.getPixels();
+		}
+
+		@Override
+		final public void setTarget( final ImageProcessor target )
+		{
+			this.target = ( float[] )target.getPixels();
+		}
+
+		@Override
+		final public void clear( final int i )
+		{
+			target[ i ] = 0;
+		}
+
+		@Override
+		final public void nearest( final int x, final int y, final int i )
+		{
+			target[ i ] = source[ y * sourceWidth + x ];
+		}
+
+		@Override
+		final protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i )
+		{
+			final double v0 = source[ a ] + dx * ( source[ a + r ] - source[ a ] );
+			final double v1 = source[ b ] + dx * ( source[ b + r ] - source[ b ] );
+			target[ i ] = ( float )( v0 + dy * ( v1 - v0 ) );
+		}
+	}
+
+	final static public class RGBKernel extends PixelKernel
+	{
+		private int[] source;
+		private int[] target;
+
+		@Override
+		final public void setSource( final ImageProcessor source )
+		{
+			super.setSource( source );
+			this.source = ( int[] )source.getPixels();
+		}
+
+		@Override
+		final public void setTarget( final ImageProcessor target )
+		{
+			this.target = ( int[] )target.getPixels();
+		}
+
+		@Override
+		final public void clear( final int i )
+		{
+			target[ i ] = 0;
+		}
+
+		@Override
+		final public void nearest( final int x, final int y, final int i )
+		{
+			target[ i ] = source[ y * sourceWidth + x ];
+		}
+
+		@Override
+		final protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i )
+		{
+			final int s00 = source[ a ];
+			final int s01 = source[ a + r ];
+			final int s10 = source[ b ];
+			final int s11 = source[ b + r ];
+
+			final double w00 = ( 1.0 - dx ) * ( 1.0 - dy );
+			final double w01 = dx * ( 1.0 - dy );
+			final double w10 = ( 1.0 - dx ) * dy;
+			final double w11 = dx * dy;
+
+			final int red = ( int )(
+					w00 * ( ( s00 >> 16 ) & 0xff ) +
+					w01 * ( ( s01 >> 16 ) & 0xff ) +
+					w10 * ( ( s10 >> 16 ) & 0xff ) +
+					w11 * ( ( s11 >> 16 ) & 0xff ) + 0.5 );
+			final int green = ( int )(
+					w00 * ( ( s00 >> 8 ) & 0xff ) +
+					w01 * ( ( s01 >> 8 ) & 0xff ) +
+					w10 * ( ( s10 >> 8 ) & 0xff ) +
+					w11 * ( ( s11 >> 8 ) & 0xff ) + 0.5 );
+			final int blue = ( int )(
+					w00 * ( s00 & 0xff ) +
+					w01 * ( s01 & 0xff ) +
+					w10 * ( s10 & 0xff ) +
+					w11 * ( s11 & 0xff ) + 0.5 );
+
+			target[ i ] = 0xff000000 | ( red << 16 ) | ( green << 8 ) | blue;
+		}
+	}
+
+	/**
+	 * Fallback for mixed pixel types.
+	 */
+	final static public class ProcessorKernel extends PixelKernel
+	{
+		private ImageProcessor source;
+		private ImageProcessor target;
+		private int targetWidth;
+
+		@Override
+		final public void setSource( final ImageProcessor source )
+		{
+			super.setSource( source );
+			this.source = source;
+		}
+
+		@Override
+		final public void setTarget( final ImageProcessor target )
+		{
+			this.target = target;
+			targetWidth = target.getWidth();
+		}
+
+		@Override
+		final public void clear( final int i )
+		{
+			target.set( i, 0 );
+		}
+
+		@Override
+		final public void nearest( final int x, final int y, final int i )
+		{
+			target.putPixel( i % targetWidth, i / targetWidth, source.getPixel( x, y ) );
+		}
+
+		/**
+		 * Extensions are clamped instead of wrapped.
+		 */
+		@Override
+		final public void bilinear( final double x, final double y, final int i )
+		{
+			target.putPixel( i % targetWidth, i / targetWidth, source.getPixelInterpolated( Math.min( x, lastX ), Math.min( y, lastY ) ) );
+		}
+
+		@Override
+		final protected void interpolate( final int a, final int r, final int b, final double dx, final double dy, final int i )
+		{
+			bilinear( a % sourceWidth + dx, a / sourceWidth + dy, i );
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package mpicbg.panorama;
+
+import java.util.ArrayList;
+
+/**
+ * Unit viewing rays through all pixels of a target in the frame of the
+ * camera.  Rays depend on the target size, the focal length and the
+ * {@link OutputProjection} only, such that frames that differ in
+ * orientation only rotate the cached rays instead of projecting each pixel
+ * again.  Rays outside of the projection are NaN.
+ *
+ * The table covers pixels (0, 0) to (width, height) inclusively, i.e. the
+ * extra column and row of targets that map their corners to the corners of
+ * the target plane.  Rays are stored as floats, i.e. directions are
+ * accurate to about 1e-7 radians.  Longitude amplifies this towards the
+ * poles where it becomes ill-conditioned.
+ *
+ * Tables are immutable.  The last few tables are cached such that
+ * alternating between preview and full resolution frames does not rebuild
+ * them.  Tables are built only once the focal length stopped changing,
+ * such that zooming does not build a table per frame.
+ *
+ * @author Stephan Saalfeld
+ */
+final public class RayTable
+{
+	/* tables kept for reuse */
+	final static private int cacheSize = 4;
+
+	final static private ArrayList< RayTable > cache = new ArrayList< RayTable >();
+
+	/* focal length of the last request that found no table */
+	static private double missedF = Double.NaN;
+
+	final private double targetWidth;
+	final private double targetHeight;
+	final private double f;
+	final private OutputProjection output;
+
+	final private int width;
+	final private int height;
+	final private float[] xs;
+	final private float[] ys;
+	final private float[] zs;
+
+	private RayTable(
+			final double targetWidth,
+			final double targetHeight,
+			final double f,
+			final OutputProjection output )
+	{
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		this.f = f;
+		this.output = output;
+
+		width = ( int )targetWidth + 1;
+		height = ( int )targetHeight + 1;
+		xs = new float[ width * height ];
+		ys = new float[ width * height ];
+		zs = new float[ width * height ];
+
+		final double maxSize = Math.max( targetWidth, targetHeight );
+		RowBands.render(
+				height,
+				new RowBands.Band()
+				{
+					@Override
+					final public void render( final int minY, final int maxY )
+					{
+						final double[] r = new double[ 3 ];
+						for ( int y = minY; y < maxY; ++y )
+						{
+							final double v = ( y - 0.5 * targetHeight ) / maxSize;
+							for ( int x = 0, i = y * width; x < width; ++x, ++i )
+							{
+								if ( output.ray( ( x - 0.5 * targetWidth ) / maxSize, v, f, r ) )
+								{
+									xs[ i ] = ( float )r[ 0 ];
+									ys[ i ] = ( float )r[ 1 ];
+									zs[ i ] = ( float )r[ 2 ];
+								}
+								else
+									xs[ i ] = ys[ i ] = zs[ i ] = Float.NaN;
+							}
+						}
+					}
+				} );
+	}
+
+	/**
+	 * The cached table for target size, focal length and output projection.
+	 * If there is none, it is built on the shared {@link RowBands#getPool()
+	 * pool} if the last request that found no table had the same focal
+	 * length, otherwise null is returned and rays have to be calculated per
+	 * pixel.  Must not be called from tasks of the pool.
+	 *
+	 * @return the table or null while the focal length is changing
+	 */
+	synchronized static public RayTable get(
+			final double targetWidth,
+			final double targetHeight,
+			final double f,
+			final OutputProjection output )
+	{
+		for ( int k = 0; k < cache.size(); ++k )
+		{
+			final RayTable table = cache.get( k );
+			if ( table.matches( targetWidth, targetHeight, f, output ) )
+			{
+				cache.remove( k );
+				cache.add( 0, table );
+				return table;
+			}
+		}
+		if ( f != missedF )
+		{
+			missedF = f;
+			return null;
+		}
+		final RayTable table = new RayTable( targetWidth, targetHeight, f, output );
+		cache.add( 0, table );
+		if ( cache.size() > cacheSize )
+			cache.remove( cacheSize );
+		return table;
+	}
+
+	final public boolean matches(
+			final double targetWidth,
+			final double targetHeight,
+			final double f,
+			final OutputProjection output )
+	{
+		return
+				this.targetWidth == targetWidth &&
+				this.targetHeight == targetHeight &&
+				this.f == f &&
+				this.output == output;
+	}
+
+	final public int getWidth(){ return width; }
+	final public int getHeight(){ return height; }
+	final public float[] getXs(){ return xs; }
+	final public float[] getYs(){ return ys; }
+	final public float[] getZs(){ return zs; }
+}
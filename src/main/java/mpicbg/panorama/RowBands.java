@@ -0,0 +1,140 @@
+package mpicbg.panorama;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of a target into bands and renders them on a shared
+ * {@link ForkJoinPool}.
+ *
+ * @author Stephan Saalfeld
+ */
+final public class RowBands
+{
+	private RowBands(){}
+
+	/**
+	 * Renders rows [minY, maxY).  Implementations must not share mutable
+	 * state between calls.
+	 */
+	public interface Band
+	{
+		public void render( final int minY, final int maxY );
+	}
+
+	final static private ForkJoinPool pool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+
+	/* bands per worker, more than one for load balancing */
+	final static private int bandsPerWorker = 4;
+
+	final static public ForkJoinPool getPool(){ return pool; }
+
+	final static private class BandTask extends RecursiveAction
+	{
+		final private Band band;
+		final private int minY, maxY, grain;
+
+		BandTask( final Band band, final int minY, final int maxY, final int grain )
+		{
+			this.band = band;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.grain = grain;
+		}
+
+		@Override
+		final protected void compute()
+		{
+			if ( maxY - minY <= grain )
+				band.render( minY, maxY );
+			else
+			{
+				final int y = ( minY + maxY ) >>> 1;
+				invokeAll(
+						new BandTask( band, minY, y, grain ),
+						new BandTask( band, y, maxY, grain ) );
+			}
+		}
+	}
+
+	/**
+	 * Render rows [0, height) in parallel and return when all bands are done.
+	 *
+	 * @param height
+	 * @param band
+	 */
+	final static public void render( final int height, final Band band )
+	{
+		final int grain = Math.max( 1, height / ( pool.getParallelism() * bandsPerWorker ) );
+		if ( height <= grain )
+			band.render( 0, height );
+		else
+			pool.invoke( new BandTask( band, 0, height, grain ) );
+	}
+
+	/**
+	 * A reusable split of rows into a fixed number of bands for frame loops
+	 * that should not allocate.  The tasks are created once and
+	 * {@link ForkJoinTask#reinitialize() reinitialized} for every frame.
+	 * {@link #render(int)} must not be called concurrently.
+	 */
+	final static public class Job
+	{
+		final private Band band;
+		final private Part[] parts;
+		final private Root root = new Root();
+
+		final private class Part extends RecursiveAction
+		{
+			private int minY, maxY;
+
+			@Override
+			final protected void compute()
+			{
+				if ( minY < maxY )
+					band.render( minY, maxY );
+			}
+		}
+
+		final private class Root extends RecursiveAction
+		{
+			@Override
+			final protected void compute()
+			{
+				for ( final Part part : parts )
+					part.reinitialize();
+				invokeAll( parts );
+			}
+		}
+
+		public Job( final Band band )
+		{
+			this.band = band;
+			parts = new Part[ pool.getParallelism() * bandsPerWorker ];
+			for ( int k = 0; k < parts.length; ++k )
+				parts[ k ] = new Part();
+		}
+
+		/**
+		 * Render rows [0, height) in parallel and return when all bands are
+		 * done.
+		 */
+		public void render( final int height )
+		{
+			final int n = parts.length;
+			if ( height <= 1 || n == 1 )
+			{
+				band.render( 0, height );
+				return;
+			}
+			for ( int k = 0; k < n; ++k )
+			{
+				parts[ k ].minY = ( int )( ( long )height * k / n );
+				parts[ k ].maxY = ( int )( ( long )height * ( k + 1 ) / n );
+			}
+			root.reinitialize();
+			pool.invoke( root );
+		}
+	}
+}
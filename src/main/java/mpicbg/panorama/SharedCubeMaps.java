@@ -0,0 +1,198 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * {@link CubeMap CubeMaps} shared by all viewers of a process.  Viewers of
+ * the same source with the same equirectangular parameters, cube size and
+ * pyramid share one cube map that is prepared once by the first of them.
+ * Sources are identified by their pixel arrays, such that viewers of the
+ * same {@link ij.ImagePlus} or of processors that wrap the same pixels
+ * share, but a source whose pixels were replaced does not.  Cube maps are
+ * reference counted, the last viewer that
+ * {@link #release(CubeMap) releases} one drops it.
+ *
+ * @author Stephan Saalfeld
+ */
+final public class SharedCubeMaps
+{
+	private SharedCubeMaps(){}
+
+	/**
+	 * Prepares the cube map of an entry that is acquired for the first
+	 * time.
+	 */
+	public interface Factory
+	{
+		public CubeMap create();
+	}
+
+	final static private class Key
+	{
+		final private Object pixels;
+		final private int width;
+		final private int height;
+		final private double minLambda;
+		final private double minPhi;
+		final private double lambdaPiScale;
+		final private double phiPiScale;
+		final private boolean wrap;
+		final private boolean extendBottom;
+		final private boolean fastMath;
+		final private int size;
+		final private boolean pyramid;
+
+		private Key(
+				final ImageProcessor source,
+				final EquirectangularProjection p,
+				final int size,
+				final boolean pyramid )
+		{
+			pixels = source.getPixels();
+			width = source.getWidth();
+			height = source.getHeight();
+			minLambda = p.getMinLambda();
+			minPhi = p.getMinPhi();
+			lambdaPiScale = p.getLambdaPiScale();
+			phiPiScale = p.getPhiPiScale();
+			wrap = p.isWrap();
+			extendBottom = p.isExtendBottom();
+			fastMath = p.isFastMath();
+			this.size = size;
+			this.pyramid = pyramid;
+		}
+
+		@Override
+		final public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key )o;
+			return
+					pixels == k.pixels &&
+					width == k.width &&
+					height == k.height &&
+					minLambda == k.minLambda &&
+					minPhi == k.minPhi &&
+					lambdaPiScale == k.lambdaPiScale &&
+					phiPiScale == k.phiPiScale &&
+					wrap == k.wrap &&
+					extendBottom == k.extendBottom &&
+					fastMath == k.fastMath &&
+					size == k.size &&
+					pyramid == k.pyramid;
+		}
+
+		@Override
+		final public int hashCode()
+		{
+			int h = System.identityHashCode( pixels );
+			h = h * 31 + Double.valueOf( minLambda ).hashCode();
+			h = h * 31 + Double.valueOf( minPhi ).hashCode();
+			h = h * 31 + Double.valueOf( lambdaPiScale ).hashCode();
+			h = h * 31 + Double.valueOf( phiPiScale ).hashCode();
+			h = h * 31 + size;
+			return pyramid ? h : ~h;
+		}
+	}
+
+	final static private class Entry
+	{
+		final private Key key;
+		private CubeMap cubeMap;
+		private int references = 0;
+
+		private Entry( final Key key )
+		{
+			this.key = key;
+		}
+	}
+
+	final static private HashMap< Key, Entry > entries = new HashMap< Key, Entry >();
+	final static private IdentityHashMap< CubeMap, Entry > acquired = new IdentityHashMap< CubeMap, Entry >();
+
+	/**
+	 * The shared cube map of size rendered from source with p, with or
+	 * without a {@link CubeMap#createPyramid() pyramid}.  If no viewer holds
+	 * it, it is created by factory in the calling thread.  Concurrent
+	 * callers with the same parameters wait for it instead of creating
+	 * their own.  Each call must be paired with a call of
+	 * {@link #release(CubeMap)}.
+	 */
+	final static public CubeMap acquire(
+			final ImageProcessor source,
+			final EquirectangularProjection p,
+			final int size,
+			final boolean pyramid,
+			final Factory factory )
+	{
+		final Key key = new Key( source, p, size, pyramid );
+		final Entry entry;
+		synchronized ( entries )
+		{
+			Entry e = entries.get( key );
+			if ( e == null )
+			{
+				e = new Entry( key );
+				entries.put( key, e );
+			}
+			++e.references;
+			entry = e;
+		}
+
+		synchronized ( entry )
+		{
+			if ( entry.cubeMap == null )
+			{
+				final CubeMap cubeMap;
+				try
+				{
+					cubeMap = factory.create();
+				}
+				catch ( final RuntimeException e )
+				{
+					release( entry );
+					throw e;
+				}
+				synchronized ( entries )
+				{
+					acquired.put( cubeMap, entry );
+					entry.cubeMap = cubeMap;
+				}
+			}
+			return entry.cubeMap;
+		}
+	}
+
+	/**
+	 * Release cubeMap.  Cube maps that were not {@link #acquire(
+	 * ImageProcessor, EquirectangularProjection, int, boolean, Factory)
+	 * acquired} are ignored.
+	 */
+	final static public void release( final CubeMap cubeMap )
+	{
+		final Entry entry;
+		synchronized ( entries )
+		{
+			entry = acquired.get( cubeMap );
+		}
+		if ( entry != null )
+			release( entry );
+	}
+
+	final static private void release( final Entry entry )
+	{
+		synchronized ( entries )
+		{
+			if ( --entry.references == 0 )
+			{
+				entries.remove( entry.key );
+				if ( entry.cubeMap != null )
+					acquired.remove( entry.cubeMap );
+			}
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package mpicbg.panorama;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the slices of a stack, e.g. a 360&deg; video or time-lapse, in a
+ * loop.  The slices following the current one are read and
+ * {@link Loader prepared}, e.g. into {@link CubeMap CubeMaps}, on background
+ * threads.  At most {@link #getLookAhead() lookAhead} of them are held.
+ * Slices of virtual stacks are read one at a time, preparing them runs
+ * concurrently.
+ *
+ * Each tick of the playback clock advances to the next slice only if it is
+ * prepared, such that playback slows down if reading or preparing cannot
+ * keep up, but never blocks the viewer.
+ *
+ * Prepared slices that are no longer played are kept in a small pool and
+ * handed to the {@link Loader} for reuse.  The frame last returned by
+ * {@link #getCurrent()} is recycled only after a newer one was returned,
+ * such that a viewer can render it until it asks for the next.  The
+ * initial current slice is never recycled, it may be shared.
+ *
+ * @author Stephan Saalfeld
+ */
+public class StackPlayer< T >
+{
+	/**
+	 * Prepares a slice for rendering.  Called on background threads.
+	 */
+	public interface Loader< T >
+	{
+		/**
+		 * @param slice
+		 * @param recycled a prepared slice that is no longer played and may
+		 * 		be overwritten, or null
+		 */
+		public T load( final ImageProcessor slice, final T recycled );
+	}
+
+	final static private ExecutorService background = Executors.newFixedThreadPool(
+			2,
+			new ThreadFactory()
+			{
+				@Override
+				final public Thread newThread( final Runnable r )
+				{
+					final Thread t = new Thread( r, "StackPlayer prefetch" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+
+	final static private ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+			{
+				@Override
+				final public Thread newThread( final Runnable r )
+				{
+					final Thread t = new Thread( r, "StackPlayer clock" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+
+	final protected ImageStack stack;
+	final protected Loader< T > loader;
+
+	final protected int lookAhead;
+	final public int getLookAhead(){ return lookAhead; }
+
+	/* the current slice, 1-based like ImageStack, and its prepared frame */
+	private int slice;
+	private T current;
+
+	/* the initial frame, the frame last returned by getCurrent and a replaced frame it still was */
+	final private T initial;
+	private T drawn;
+	private T retired;
+
+	/* frames that are no longer played, at most lookAhead */
+	final private ArrayDeque< T > pool = new ArrayDeque< T >();
+
+	/* prepared and pending slices of the look-ahead window */
+	final private HashMap< Integer, Future< T > > pending = new HashMap< Integer, Future< T > >();
+
+	private ScheduledFuture< ? > ticks = null;
+
+	/**
+	 * @param stack
+	 * @param slice the current slice, 1-based
+	 * @param current the prepared current slice
+	 * @param lookAhead maximal number of slices prepared ahead
+	 * @param loader
+	 */
+	public StackPlayer(
+			final ImageStack stack,
+			final int slice,
+			final T current,
+			final int lookAhead,
+			final Loader< T > loader )
+	{
+		this.stack = stack;
+		this.slice = slice;
+		this.current = current;
+		initial = current;
+		this.lookAhead = Math.max( 1, Math.min( lookAhead, stack.getSize() - 1 ) );
+		this.loader = loader;
+	}
+
+	synchronized final public int getSlice(){ return slice; }
+
+	/**
+	 * The prepared current slice.  The frame returned before, if replaced,
+	 * is recycled from now on.
+	 */
+	synchronized final public T getCurrent()
+	{
+		drawn = current;
+		if ( retired != null && retired != drawn )
+		{
+			recycle( retired );
+			retired = null;
+		}
+		return current;
+	}
+
+	/**
+	 * Put frame into the pool unless it is the initial frame or the pool is
+	 * full.
+	 */
+	synchronized final private void recycle( final T frame )
+	{
+		if ( frame != null && frame != initial && pool.size() < lookAhead )
+			pool.push( frame );
+	}
+
+	/**
+	 * Recycle frame once it is not drawn anymore.
+	 */
+	synchronized final private void retire( final T frame )
+	{
+		if ( frame == drawn )
+		{
+			recycle( retired );
+			retired = frame;
+		}
+		else
+			recycle( frame );
+	}
+
+	synchronized final public boolean isPlaying(){ return ticks != null; }
+
+	final private int next( final int s )
+	{
+		return s % stack.getSize() + 1;
+	}
+
+	/**
+	 * Start playback at fps slices per second.  listener is called by the
+	 * playback clock whenever the current slice changed.
+	 */
+	synchronized public void play( final double fps, final Runnable listener )
+	{
+		stop();
+		prefetch();
+		final long period = Math.max( 1, ( long )( 1e9 / fps ) );
+		ticks = clock.scheduleAtFixedRate(
+				new Runnable()
+				{
+					@Override
+					final public void run()
+					{
+						if ( advance() )
+							listener.run();
+					}
+				},
+				period,
+				period,
+				TimeUnit.NANOSECONDS );
+	}
+
+	/**
+	 * Pause playback at the current slice.  Prepared slices are kept.
+	 */
+	synchronized public void stop()
+	{
+		if ( ticks != null )
+		{
+			ticks.cancel( false );
+			ticks = null;
+		}
+	}
+
+	/**
+	 * Make the next slice current if it is prepared.  Slices that could not
+	 * be read or prepared are skipped, the current frame then stays.
+	 *
+	 * @return true if the current slice changed
+	 */
+	synchronized public boolean advance()
+	{
+		final int s = next( slice );
+		final Future< T > task = pending.get( s );
+		if ( task == null || !task.isDone() )
+		{
+			prefetch();
+			return false;
+		}
+		pending.remove( s );
+		slice = s;
+		try
+		{
+			final T previous = current;
+			current = task.get();
+			retire( previous );
+		}
+		catch ( final ExecutionException e )
+		{
+			IJ.log( "Could not prepare slice " + s + ": " + e.getCause() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		prefetch();
+		return true;
+	}
+
+	/**
+	 * Queue the slices of the look-ahead window that are neither prepared
+	 * nor pending and cancel those that left it.
+	 */
+	synchronized final private void prefetch()
+	{
+		for ( final Iterator< Map.Entry< Integer, Future< T > > > i = pending.entrySet().iterator(); i.hasNext(); )
+		{
+			final Map.Entry< Integer, Future< T > > entry = i.next();
+			final int d = ( entry.getKey() - slice + stack.getSize() ) % stack.getSize();
+			if ( d == 0 || d > lookAhead )
+			{
+				final Future< T > task = entry.getValue();
+				if ( !task.cancel( false ) )
+					recycle( result( task ) );
+				i.remove();
+			}
+		}
+
+		int s = slice;
+		for ( int k = 0; k < lookAhead; ++k )
+		{
+			s = next( s );
+			if ( !pending.containsKey( s ) )
+				pending.put( s, background.submit( request( s ) ) );
+		}
+	}
+
+	final private Callable< T > request( final int s )
+	{
+		return new Callable< T >()
+		{
+			@Override
+			final public T call()
+			{
+				final ImageProcessor ip;
+				/* virtual stacks read from disk, one slice at a time */
+				synchronized ( stack )
+				{
+					ip = stack.getProcessor( s );
+				}
+				final T recycled;
+				synchronized ( StackPlayer.this )
+				{
+					recycled = pool.poll();
+				}
+				return loader.load( ip, recycled );
+			}
+		};
+	}
+
+	/**
+	 * The result of a completed task, null if it failed.
+	 */
+	final private T result( final Future< T > task )
+	{
+		try
+		{
+			return task.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			return null;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Stop playback, cancel all background preparation and release the
+	 * prepared slices.
+	 */
+	synchronized public void dispose()
+	{
+		stop();
+		for ( final Future< T > task : pending.values() )
+			task.cancel( false );
+		pending.clear();
+		pool.clear();
+		retired = null;
+	}
+}
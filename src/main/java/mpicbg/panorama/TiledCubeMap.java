@@ -0,0 +1,453 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link CubeMap} whose faces are split into square tiles that are
+ * rendered from the equirectangular source, in-heap or
+ * {@link TiledSource tiled}, the first time they are sampled.  Tiles
+ * overlap by one pixel such that interpolation stays within each tile.
+ * Rendered tiles are held in a cache bounded in bytes, the least recently
+ * sampled tiles are evicted first.  Tiles sampled in the current frame
+ * are never evicted, such that the cache exceeds its budget if a single
+ * frame samples more tiles than fit into it.  After each frame, the
+ * neighbors of the sampled tiles are rendered in the background.
+ *
+ * Coarser levels have size {@link #getSize() size} / 2<sup>l</sup> like
+ * the levels of {@link CubeMap#createPyramid()}.  Their tiles are rendered
+ * at twice their resolution and downsampled with the same tent filter.
+ *
+ * @author Stephan Saalfeld
+ */
+public class TiledCubeMap
+{
+	final static public class Tile
+	{
+		final protected int level;
+		final protected int index;
+		final protected ImageProcessor ip;
+
+		/* frame in which the tile was sampled last */
+		protected volatile long lastUsed;
+
+		public Tile( final int level, final int index, final ImageProcessor ip )
+		{
+			this.level = level;
+			this.index = index;
+			this.ip = ip;
+		}
+
+		final public ImageProcessor getProcessor(){ return ip; }
+	}
+
+	/* smallest size of a pyramid level */
+	final static private int minPyramidSize = 16;
+
+	/* the least recently used tiles are evicted down to 7/8 of the budget */
+	final static private int evictionFraction = 8;
+
+	final static private ExecutorService background = Executors.newSingleThreadExecutor(
+			new ThreadFactory()
+			{
+				@Override
+				final public Thread newThread( final Runnable r )
+				{
+					final Thread t = new Thread( r, "TiledCubeMap prefetch" );
+					t.setDaemon( true );
+					t.setPriority( Thread.MIN_PRIORITY );
+					return t;
+				}
+			} );
+
+	final protected ImageProcessor source;
+	final protected TiledSource tiledSource;
+	final protected ImageProcessor template;
+	final protected EquirectangularProjection projection;
+	final protected EquirectangularMapping mapping;
+
+	final protected int size;
+	final protected int tileSize;
+	final protected int maxTiles;
+	final protected int[] sizes;
+	final protected int[] tilesPerSide;
+	final protected AtomicReferenceArray< Tile >[] grids;
+
+	final private ArrayList< Tile > resident = new ArrayList< Tile >();
+
+	/* tiles sampled in the current frame, reused by prefetch */
+	final private ArrayList< Tile > used = new ArrayList< Tile >();
+	final private ConcurrentHashMap< Long, FutureTask< Tile > > pending = new ConcurrentHashMap< Long, FutureTask< Tile > >();
+
+	protected volatile long frame = 0;
+
+	/**
+	 * @param source equirectangular source, extended for interpolation
+	 * 		unless projection {@link EquirectangularProjection#isWrap() wraps}
+	 * 		and {@link EquirectangularProjection#isExtendBottom() extends} it
+	 * @param projection source parameters (&lambda;, &phi;, scale)
+	 * @param size face size
+	 * @param tileSize
+	 * @param maxBytes budget for the pixels of all cached tiles, exceeded
+	 * 		only by the tiles of the current frame
+	 * @param pyramid create coarser levels
+	 */
+	public TiledCubeMap(
+			final ImageProcessor source,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize,
+			final long maxBytes,
+			final boolean pyramid )
+	{
+		this( source, null, source, projection, size, tileSize, maxBytes, pyramid );
+	}
+
+	/**
+	 * @param source tiled equirectangular source
+	 * @param projection source parameters (&lambda;, &phi;, scale)
+	 * @param size face size
+	 * @param tileSize
+	 * @param maxBytes budget for the pixels of all cached tiles, exceeded
+	 * 		only by the tiles of the current frame
+	 * @param pyramid create coarser levels
+	 */
+	public TiledCubeMap(
+			final TiledSource source,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize,
+			final long maxBytes,
+			final boolean pyramid )
+	{
+		this( null, source, source.getTemplate(), projection, size, tileSize, maxBytes, pyramid );
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private TiledCubeMap(
+			final ImageProcessor source,
+			final TiledSource tiledSource,
+			final ImageProcessor template,
+			final EquirectangularProjection projection,
+			final int size,
+			final int tileSize,
+			final long maxBytes,
+			final boolean pyramid )
+	{
+		this.source = source;
+		this.tiledSource = tiledSource;
+		this.template = template;
+		this.size = size;
+		this.tileSize = tileSize;
+
+		this.projection = projection.clone();
+		this.projection.resetOrientation();
+		this.projection.setF( 0.5f );
+		mapping = new EquirectangularMapping( this.projection );
+
+		int n = 1;
+		if ( pyramid )
+			while ( ( size >> n ) >= minPyramidSize )
+				++n;
+		sizes = new int[ n ];
+		tilesPerSide = new int[ n ];
+		grids = new AtomicReferenceArray[ n ];
+		for ( int l = 0; l < n; ++l )
+		{
+			sizes[ l ] = size >> l;
+			tilesPerSide[ l ] = ( sizes[ l ] + tileSize - 1 ) / tileSize;
+			grids[ l ] = new AtomicReferenceArray< Tile >( 6 * tilesPerSide[ l ] * tilesPerSide[ l ] );
+		}
+
+		final int bytesPerPixel = template.getBitDepth() == 24 ? 4 : template.getBitDepth() / 8;
+		final long tileBytes = ( long )( tileSize + 1 ) * ( tileSize + 1 ) * bytesPerPixel;
+		maxTiles = ( int )Math.max( evictionFraction, Math.min( Integer.MAX_VALUE, maxBytes / tileBytes ) );
+	}
+
+	/**
+	 * The in-heap source, null for a tiled source.
+	 */
+	final public ImageProcessor getSource(){ return source; }
+	final public TiledSource getTiledSource(){ return tiledSource; }
+
+	/**
+	 * A processor of the pixel type of the tiles.
+	 */
+	final public ImageProcessor getTemplate(){ return template; }
+	final public int getSize(){ return size; }
+	final public int getSize( final int level ){ return sizes[ level ]; }
+	final public int getTileSize(){ return tileSize; }
+	final public int numTiles( final int level ){ return tilesPerSide[ level ]; }
+	final public int numLevels(){ return sizes.length; }
+
+	/**
+	 * @see CubeMap#selectLevel(double)
+	 */
+	final public int selectLevel( final double scale )
+	{
+		if ( scale <= 1 )
+			return 0;
+		final int level = ( int )( Math.log( scale ) / Math.log( 2 ) + 0.5 );
+		return Math.min( level, sizes.length - 1 );
+	}
+
+	/**
+	 * Start a new frame.  Tiles sampled in the current frame are not
+	 * evicted.
+	 */
+	final public void nextFrame()
+	{
+		++frame;
+	}
+
+	final private int index( final int level, final int face, final int tx, final int ty )
+	{
+		final int n = tilesPerSide[ level ];
+		return ( face * n + ty ) * n + tx;
+	}
+
+	final static private long key( final int level, final int index )
+	{
+		return ( ( long )level << 48 ) | index;
+	}
+
+	/**
+	 * Tile (tx, ty) of face at level.  Tiles that are not cached are
+	 * rendered in the calling thread unless they are being rendered
+	 * already.
+	 */
+	final public Tile getTile( final int level, final int face, final int tx, final int ty )
+	{
+		final int index = index( level, face, tx, ty );
+		Tile tile = grids[ level ].get( index );
+		if ( tile == null )
+		{
+			final FutureTask< Tile > task = request( level, face, tx, ty, index );
+			task.run();
+			try
+			{
+				tile = task.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				tile = render( level, face, tx, ty, index );
+			}
+			catch ( final CancellationException e )
+			{
+				/* a prefetch of this tile was cancelled by dispose */
+				tile = render( level, face, tx, ty, index );
+			}
+		}
+		tile.lastUsed = frame;
+		return tile;
+	}
+
+	final private FutureTask< Tile > request(
+			final int level,
+			final int face,
+			final int tx,
+			final int ty,
+			final int index )
+	{
+		final Long key = key( level, index );
+		final FutureTask< Tile > task = pending.get( key );
+		if ( task != null )
+			return task;
+
+		final FutureTask< Tile > t = new FutureTask< Tile >(
+				new Callable< Tile >()
+				{
+					@Override
+					final public Tile call()
+					{
+						try
+						{
+							Tile tile = grids[ level ].get( index );
+							if ( tile == null )
+							{
+								tile = render( level, face, tx, ty, index );
+								publish( tile );
+							}
+							return tile;
+						}
+						finally
+						{
+							pending.remove( key );
+						}
+					}
+				} );
+		final FutureTask< Tile > other = pending.putIfAbsent( key, t );
+		return other == null ? t : other;
+	}
+
+	/**
+	 * Render tile (tx, ty) of face at level.  Tiles at coarser levels are
+	 * rendered at twice their resolution and downsampled.
+	 */
+	final protected Tile render( final int level, final int face, final int tx, final int ty, final int index )
+	{
+		final int s = sizes[ level ];
+		final int x0 = tx * tileSize;
+		final int y0 = ty * tileSize;
+		final int w = Math.min( tileSize, s - x0 ) + 1;
+		final int h = Math.min( tileSize, s - y0 ) + 1;
+		final ImageProcessor ip = template.createProcessor( w, h );
+
+		final EquirectangularProjection q = projection.clone();
+		CubeMap.orient( q, face );
+		if ( level == 0 )
+		{
+			q.setTargetWidth( s );
+			q.setTargetHeight( s );
+			mapTile( q, ip, x0, y0 );
+		}
+		else
+		{
+			final ImageProcessor fine = template.createProcessor( 2 * w - 1, 2 * h - 1 );
+			q.setTargetWidth( 2 * s );
+			q.setTargetHeight( 2 * s );
+			mapTile( q, fine, 2 * x0, 2 * y0 );
+			CubeMap.downsample( fine, ip );
+		}
+		return new Tile( level, index, ip );
+	}
+
+	final private void mapTile( final EquirectangularProjection q, final ImageProcessor ip, final int x0, final int y0 )
+	{
+		if ( tiledSource == null )
+			mapping.mapInterpolatedTile( q, source, ip, x0, y0 );
+		else
+			mapping.mapInterpolatedTile( q, tiledSource, ip, x0, y0 );
+	}
+
+	final private void publish( final Tile tile )
+	{
+		tile.lastUsed = frame;
+		synchronized ( resident )
+		{
+			grids[ tile.level ].set( tile.index, tile );
+			resident.add( tile );
+			if ( resident.size() > maxTiles )
+				evict();
+		}
+	}
+
+	/**
+	 * Evict the least recently sampled tiles down to 7/8 of the budget but
+	 * no tiles sampled in the current frame.
+	 */
+	final private void evict()
+	{
+		final long current = frame;
+		Collections.sort(
+				resident,
+				new Comparator< Tile >()
+				{
+					@Override
+					final public int compare( final Tile a, final Tile b )
+					{
+						return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+					}
+				} );
+		final int n = resident.size() - ( maxTiles - maxTiles / evictionFraction );
+		int k = 0;
+		for ( ; k < n; ++k )
+		{
+			final Tile tile = resident.get( k );
+			if ( tile.lastUsed >= current )
+				break;
+			grids[ tile.level ].set( tile.index, null );
+		}
+		resident.subList( 0, k ).clear();
+	}
+
+	/**
+	 * Queue the uncached neighbors of the tiles sampled in the current frame
+	 * for rendering in the background, as long as they fit into the
+	 * budget.
+	 */
+	synchronized public void prefetch()
+	{
+		final long current = frame;
+		used.clear();
+		int budget;
+		synchronized ( resident )
+		{
+			for ( final Tile tile : resident )
+				if ( tile.lastUsed == current )
+					used.add( tile );
+			budget = maxTiles - maxTiles / evictionFraction - resident.size() - pending.size();
+		}
+
+		for ( final Tile tile : used )
+		{
+			final int n = tilesPerSide[ tile.level ];
+			final int face = tile.index / ( n * n );
+			final int tx = tile.index % n;
+			final int ty = ( tile.index / n ) % n;
+			for ( int d = 0; d < 4 && budget > 0; ++d )
+			{
+				final int x = tx + ( d == 0 ? -1 : d == 1 ? 1 : 0 );
+				final int y = ty + ( d == 2 ? -1 : d == 3 ? 1 : 0 );
+				if ( x < 0 || x >= n || y < 0 || y >= n )
+					continue;
+				final int index = index( tile.level, face, x, y );
+				if ( grids[ tile.level ].get( index ) != null || pending.containsKey( key( tile.level, index ) ) )
+					continue;
+				background.execute( request( tile.level, face, x, y, index ) );
+				--budget;
+			}
+		}
+	}
+
+	/**
+	 * Cancel all background rendering, wait for the tile that is being
+	 * rendered in the background, if any, and release the cached tiles.
+	 */
+	public void dispose()
+	{
+		for ( final FutureTask< Tile > task : pending.values() )
+			task.cancel( false );
+		pending.clear();
+
+		/* the background thread runs tasks in order, cancelled tasks return immediately */
+		try
+		{
+			background.submit(
+					new Runnable()
+					{
+						@Override
+						final public void run(){}
+					} ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e ){}
+
+		synchronized ( resident )
+		{
+			for ( final Tile tile : resident )
+				grids[ tile.level ].set( tile.index, null );
+			resident.clear();
+		}
+	}
+}
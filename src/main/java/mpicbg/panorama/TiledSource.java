@@ -0,0 +1,267 @@
+package mpicbg.panorama;
+
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An equirectangular source in a {@link MappedImage} that is read in square
+ * tiles on demand.  The source is extended like
+ * {@link AbstractPanorama_View#prepareExtendedImage(ImageProcessor,
+ * ImageProcessor)}, i.e. by the first column for 360&deg; panoramas and a
+ * copy of the last row for 180&deg; panoramas, without copying it.
+ *
+ * Tiles overlap by one pixel such that interpolation stays within each
+ * tile, tile (tx, ty) covers source pixels [tx &middot; tileSize, (tx + 1)
+ * &middot; tileSize] horizontally and vertically.  Read tiles are held in a
+ * cache bounded in bytes, the least recently requested tiles are evicted
+ * first.
+ *
+ * @author Stephan Saalfeld
+ */
+public class TiledSource
+{
+	final static public class Tile
+	{
+		final protected int index;
+		final protected ImageProcessor ip;
+
+		/* clock of the last request */
+		protected volatile long lastUsed;
+
+		public Tile( final int index, final ImageProcessor ip )
+		{
+			this.index = index;
+			this.ip = ip;
+		}
+
+		final public ImageProcessor getProcessor(){ return ip; }
+	}
+
+	/* the least recently used tiles are evicted down to 7/8 of the budget */
+	final static private int evictionFraction = 8;
+
+	final protected MappedImage image;
+	final protected int width;
+	final protected int height;
+	final protected int tileSize;
+	final protected int tilesX;
+	final protected int tilesY;
+	final protected int maxTiles;
+	final protected ImageProcessor template;
+
+	final private AtomicReferenceArray< Tile > grid;
+	final private ArrayList< Tile > resident = new ArrayList< Tile >();
+	final private ConcurrentHashMap< Integer, FutureTask< Tile > > pending = new ConcurrentHashMap< Integer, FutureTask< Tile > >();
+	final private AtomicLong clock = new AtomicLong();
+
+	/**
+	 * @param image
+	 * @param wrap extend by the first column, for 360&deg; panoramas
+	 * @param extendBottom extend by a copy of the last row, for 180&deg;
+	 * 		panoramas
+	 * @param tileSize
+	 * @param maxBytes upper bound for the pixels of all cached tiles
+	 */
+	public TiledSource(
+			final MappedImage image,
+			final boolean wrap,
+			final boolean extendBottom,
+			final int tileSize,
+			final long maxBytes )
+	{
+		this.image = image;
+		this.tileSize = tileSize;
+		width = wrap ? image.getWidth() + 1 : image.getWidth();
+		height = extendBottom ? image.getHeight() + 1 : image.getHeight();
+		tilesX = Math.max( 1, ( width - 2 ) / tileSize + 1 );
+		tilesY = Math.max( 1, ( height - 2 ) / tileSize + 1 );
+		grid = new AtomicReferenceArray< Tile >( tilesX * tilesY );
+		template = image.createProcessor( 1, 1 );
+
+		final int bytesPerPixel = template.getBitDepth() == 24 ? 4 : template.getBitDepth() / 8;
+		final long tileBytes = ( long )( tileSize + 1 ) * ( tileSize + 1 ) * bytesPerPixel;
+		maxTiles = ( int )Math.max( evictionFraction, Math.min( Integer.MAX_VALUE, maxBytes / tileBytes ) );
+	}
+
+	final public MappedImage getImage(){ return image; }
+	final public int getWidth(){ return width; }
+	final public int getHeight(){ return height; }
+	final public int getTileSize(){ return tileSize; }
+	final public int numTilesX(){ return tilesX; }
+	final public int numTilesY(){ return tilesY; }
+
+	/**
+	 * A 1&times;1 processor of the pixel type of the source, e.g. to
+	 * create kernels and targets.
+	 */
+	final public ImageProcessor getTemplate(){ return template; }
+
+	/**
+	 * Tile column of source column x in [0, {@link #getWidth() width}).
+	 */
+	final public int tileX( final int x )
+	{
+		return Math.min( x / tileSize, tilesX - 1 );
+	}
+
+	/**
+	 * Tile row of source row y in [0, {@link #getHeight() height}).
+	 */
+	final public int tileY( final int y )
+	{
+		return Math.min( y / tileSize, tilesY - 1 );
+	}
+
+	/**
+	 * Tile (tx, ty).  Tiles that are not cached are read in the calling
+	 * thread unless they are being read already.
+	 */
+	final public Tile getTile( final int tx, final int ty )
+	{
+		final int index = ty * tilesX + tx;
+		Tile tile = grid.get( index );
+		if ( tile == null )
+		{
+			final FutureTask< Tile > task = request( tx, ty, index );
+			task.run();
+			try
+			{
+				tile = task.get();
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				tile = read( tx, ty, index );
+			}
+		}
+		tile.lastUsed = clock.incrementAndGet();
+		return tile;
+	}
+
+	final private FutureTask< Tile > request( final int tx, final int ty, final int index )
+	{
+		final Integer key = index;
+		final FutureTask< Tile > task = pending.get( key );
+		if ( task != null )
+			return task;
+
+		final FutureTask< Tile > t = new FutureTask< Tile >(
+				new Callable< Tile >()
+				{
+					@Override
+					final public Tile call()
+					{
+						try
+						{
+							Tile tile = grid.get( index );
+							if ( tile == null )
+							{
+								tile = read( tx, ty, index );
+								publish( tile );
+							}
+							return tile;
+						}
+						finally
+						{
+							pending.remove( key );
+						}
+					}
+				} );
+		final FutureTask< Tile > other = pending.putIfAbsent( key, t );
+		return other == null ? t : other;
+	}
+
+	/**
+	 * Read tile (tx, ty) from the mapped image, wrapping the extension
+	 * column and clamping the extension row.
+	 */
+	final protected Tile read( final int tx, final int ty, final int index )
+	{
+		final int x0 = tx * tileSize;
+		final int y0 = ty * tileSize;
+		final int w = Math.min( tileSize + 1, width - x0 );
+		final int h = Math.min( tileSize + 1, height - y0 );
+		final int iw = image.getWidth();
+		final int ih = image.getHeight();
+		final ImageProcessor ip = image.createProcessor( w, h );
+		final Object pixels = ip.getPixels();
+		final int n = Math.min( w, iw - x0 );
+		try
+		{
+			for ( int y = 0; y < h; ++y )
+			{
+				final int sy = Math.min( y0 + y, ih - 1 );
+				image.read( x0, sy, n, pixels, y * w );
+				if ( n < w )
+					image.read( 0, sy, w - n, pixels, y * w + n );
+			}
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return new Tile( index, ip );
+	}
+
+	final private void publish( final Tile tile )
+	{
+		tile.lastUsed = clock.incrementAndGet();
+		synchronized ( resident )
+		{
+			grid.set( tile.index, tile );
+			resident.add( tile );
+			if ( resident.size() > maxTiles )
+				evict();
+		}
+	}
+
+	/**
+	 * Evict the least recently requested tiles down to 7/8 of the budget.
+	 * Threads that still sample an evicted tile keep it until they switch
+	 * tiles.
+	 */
+	final private void evict()
+	{
+		Collections.sort(
+				resident,
+				new Comparator< Tile >()
+				{
+					@Override
+					final public int compare( final Tile a, final Tile b )
+					{
+						return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+					}
+				} );
+		final int n = resident.size() - ( maxTiles - maxTiles / evictionFraction );
+		for ( int k = 0; k < n; ++k )
+			grid.set( resident.get( k ).index, null );
+		resident.subList( 0, n ).clear();
+	}
+
+	/**
+	 * Release the cached tiles.
+	 */
+	public void dispose()
+	{
+		synchronized ( resident )
+		{
+			for ( final Tile tile : resident )
+				grid.set( tile.index, null );
+			resident.clear();
+		}
+	}
+}
@@ -17,4 +17,46 @@ public class Util
 		if ( b >= 0 ) return b;
 		else return b + mod;
 	}
+
+	/**
+	 * Maximal absolute error of {@link #atan2(double, double)} in radians.
+	 */
+	final static public double ATAN2_ERROR = 2e-8;
+
+	/**
+	 * Polynomial approximation of atan for 0 &lt;= x &lt;= 1 (Abramowitz and
+	 * Stegun 4.4.49), |error| &lt;= 2e-8.
+	 *
+	 * @param x
+	 * @return atan( x )
+	 */
+	final static private double atan01( final double x )
+	{
+		final double x2 = x * x;
+		return x * ( 1.0 + x2 * ( -0.3333314528 + x2 * ( 0.1999355085 + x2 * ( -0.1420889944 + x2 * ( 0.1065626393 + x2 * ( -0.0752896400 + x2 * ( 0.0429096138 + x2 * ( -0.0161657367 + x2 * 0.0028662257 ) ) ) ) ) ) ) );
+	}
+
+	/**
+	 * A fast equivalent to {@link Math#atan2(double, double)} with an
+	 * absolute error of at most {@link #ATAN2_ERROR}.
+	 *
+	 * @param y
+	 * @param x
+	 * @return -&pi; &lt;= a &lt;= &pi;
+	 */
+	final static public double atan2( final double y, final double x )
+	{
+		final double ax = Math.abs( x );
+		final double ay = Math.abs( y );
+		double a;
+		if ( ay <= ax )
+		{
+			if ( ax == 0 ) return 0;
+			a = atan01( ay / ax );
+		}
+		else
+			a = 0.5 * Math.PI - atan01( ax / ay );
+		if ( x < 0 ) a = Math.PI - a;
+		return y < 0 ? -a : a;
+	}
 }